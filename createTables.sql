@@ -0,0 +1,47 @@
+CREATE TABLE Users_yangsam (
+  username VARCHAR(20) PRIMARY KEY,
+  hashedPassword VARBINARY(256) NOT NULL,
+  balance INT NOT NULL,
+  -- Bumped by every booking, so concurrent bookings by one user can detect each other
+  version INT NOT NULL DEFAULT 0,
+  -- User names are unique regardless of case; logins look users up by this key
+  username_key AS LOWER(username) PERSISTED
+);
+
+CREATE UNIQUE INDEX Users_yangsam_username_key ON Users_yangsam (username_key) INCLUDE (hashedPassword);
+
+CREATE TABLE Reservations_yangsam (
+  res_id INT PRIMARY KEY,
+  paid INT NOT NULL,
+  username VARCHAR(20) NOT NULL REFERENCES Users_yangsam(username),
+  -- Day of month all the flights fly on, copied from Flights for the same-day check
+  day_of_month INT NOT NULL,
+  fid1 INT NOT NULL REFERENCES Flights(fid),
+  fid2 INT REFERENCES Flights(fid)
+);
+
+CREATE INDEX Reservations_yangsam_user_day ON Reservations_yangsam (username, day_of_month);
+
+-- Lists a user's reservations in ID order, a page at a time
+CREATE INDEX Reservations_yangsam_user_id ON Reservations_yangsam (username, res_id) INCLUDE (paid, fid1, fid2);
+
+-- Flights after the second of a reservation's itinerary, numbered from 3
+CREATE TABLE ReservationLegs_yangsam (
+  res_id INT NOT NULL REFERENCES Reservations_yangsam(res_id),
+  leg INT NOT NULL,
+  fid INT NOT NULL REFERENCES Flights(fid),
+  PRIMARY KEY (res_id, leg)
+);
+
+-- Single-row counter holding the last reservation ID handed out
+CREATE TABLE ReservationIds_yangsam (
+  last_id INT NOT NULL
+);
+
+INSERT INTO ReservationIds_yangsam (last_id) VALUES (0);
+
+-- Seats taken on each flight so far, kept in step with Reservations_yangsam by transaction_book
+CREATE TABLE SeatsBooked_yangsam (
+  fid INT PRIMARY KEY REFERENCES Flights(fid),
+  booked INT NOT NULL
+);
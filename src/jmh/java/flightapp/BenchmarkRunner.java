@@ -0,0 +1,50 @@
+package flightapp;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link FlightBenchmark} at 1, 8 and 64 concurrent sessions, reporting throughput and
+ * sampled latency percentiles (p50, p90, p99, p99.9, ...) for each transaction.
+ *
+ * Usage: BenchmarkRunner [flights] [benchmark regex]
+ *
+ * Results are also written to bench_output_N.json, for N concurrent sessions.  The connection
+ * pool is sized so that 64 sessions never wait on each other for a connection, through
+ * -Dflightapp.pool.max_size; dbconn.properties wins over system properties, so leave
+ * flightapp.pool.max_size out of it (FlightBenchmark fails if the pool is too small).
+ *
+ * There is no build file, so the JMH annotation processor has to run as part of javac.  With
+ * jmh-core, jmh-generator-annprocess, jopt-simple, commons-math3 and the SQL Server JDBC
+ * driver jars in lib/, from the directory holding dbconn.properties:
+ *   javac -cp "lib/*" -d out src/main/java/flightapp/*.java src/jmh/java/flightapp/*.java
+ *   java -cp "out:lib/*" flightapp.BenchmarkRunner 100000
+ * javac then also generates the benchmark classes and out/META-INF/BenchmarkList, which the
+ * JMH Runner needs to find FlightBenchmark.
+ */
+public class BenchmarkRunner {
+  private static final int[] SESSIONS = {1, 8, 64};
+
+  public static void main(String[] args) throws RunnerException {
+    String flights = args.length > 0 ? args[0] : "100000";
+    String include = args.length > 1 ? args[1] : FlightBenchmark.class.getSimpleName();
+
+    for (int sessions : SESSIONS) {
+      Options options = new OptionsBuilder()
+          .include(include)
+          .param("flights", flights)
+          .threads(sessions)
+          .forks(1)
+          .warmupIterations(3)
+          .measurementIterations(5)
+          .jvmArgsAppend("-Dflightapp.pool.max_size=" + Math.max(16, sessions))
+          .result("bench_output_" + sessions + ".json")
+          .resultFormat(ResultFormatType.JSON)
+          .build();
+      new Runner(options).run();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * JMH benchmarks for the search, book, pay and reservations transactions.
+ *
+ * Each benchmark thread is one session with its own {@code Query} and its own user.  The
+ * benchmarks run against the database named in dbconn.properties, which should be a local,
+ * disposable SQL Server instance with createTables.sql already applied: the Query SQL is
+ * T-SQL, so it cannot run on an embedded Java database.  If that database has no flights yet,
+ * it is filled with {@code flights} synthetic rows first; if it already has flights, the trial
+ * fails unless there are exactly {@code flights} of them, so a result is never reported for a
+ * data set size it did not run against.
+ *
+ * WARNING! The custom tables are cleared before every trial.
+ *
+ * See {@link BenchmarkRunner} for running these at 1, 8 and 64 concurrent sessions.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FlightBenchmark {
+
+  /**
+   * Shared across every thread: loads the data set and resets the custom tables
+   */
+  @State(Scope.Benchmark)
+  public static class Dataset {
+    @Param({"100000"})
+    public int flights;
+
+    // Used to give every session its own user name
+    final AtomicInteger nextUser = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkParams params) throws Exception {
+      // A pool smaller than the session count would measure queueing for connections instead
+      int poolSize = DBConnUtils.getIntProperty("flightapp.pool.max_size", 16);
+      if (poolSize < params.getThreads()) {
+        throw new IllegalStateException("flightapp.pool.max_size is " + poolSize + " but "
+                                        + params.getThreads() + " sessions run; remove it from "
+                                        + "dbconn.properties or raise it");
+      }
+
+      try (Connection conn = DBConnUtils.openConnection()) {
+        int loaded = SyntheticFlights.load(conn, flights, 42);
+        if (loaded != flights) {
+          throw new IllegalStateException("Flights has " + loaded + " rows, not " + flights
+                                          + "; set the flights param to match or empty the table");
+        }
+      }
+      Query query = new Query();
+      query.clearTables();
+      query.closeConnection();
+    }
+  }
+
+  /**
+   * One session: a logged-in user with plenty of money
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    Query q;
+    Random random;
+    String user;
+    String password = "benchmark";
+
+    @Setup(Level.Trial)
+    public void setup(Dataset dataset) throws Exception {
+      int id = dataset.nextUser.incrementAndGet();
+      random = new Random(id);
+      newUser(dataset);
+    }
+
+    // Log a new session in as a fresh user, since each user can only book once a day
+    void newUser(Dataset dataset) throws Exception {
+      if (q != null) {
+        q.closeConnection();
+      }
+      q = new Query();
+      user = "bench" + dataset.nextUser.incrementAndGet();
+      q.createCustomer(user, password, Integer.MAX_VALUE);
+      q.login(user, password);
+    }
+
+    String search(int numItineraries) {
+      int origin = SyntheticFlights.pickCity(random);
+      int dest = SyntheticFlights.pickCity(random);
+      int day = 1 + random.nextInt(SyntheticFlights.DAYS);
+      return q.search(SyntheticFlights.city(origin), SyntheticFlights.city(dest),
+                      random.nextBoolean(), day, numItineraries);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * A session that has just searched, and can book itinerary 0
+   */
+  @State(Scope.Thread)
+  public static class Searched {
+    @Setup(Level.Invocation)
+    public void setup(Session session, Dataset dataset) throws Exception {
+      session.newUser(dataset);
+      while (session.search(1).startsWith("No flights")) {
+        // Keep looking until some itinerary exists
+      }
+    }
+  }
+
+  /**
+   * A session with one unpaid reservation
+   */
+  @State(Scope.Thread)
+  public static class Booked {
+    int reservationId;
+
+    @Setup(Level.Invocation)
+    public void setup(Session session, Searched searched) throws Exception {
+      String booked = session.q.book(0);
+      if (!booked.startsWith("Booked")) {
+        throw new IllegalStateException("Could not book a reservation to pay for: " + booked);
+      }
+      reservationId = Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim());
+    }
+  }
+
+  /**
+   * A session whose user already has a reservation on many days
+   */
+  @State(Scope.Thread)
+  public static class History {
+    @Param({"20"})
+    public int reservations;
+
+    @Setup(Level.Trial)
+    public void setup(Session session) throws Exception {
+      int booked = 0;
+      while (booked < reservations) {
+        if (!session.search(1).startsWith("No flights")
+            && session.q.book(0).startsWith("Booked")) {
+          booked++;
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public String search(Session session) {
+    return session.search(10);
+  }
+
+  @Benchmark
+  public String book(Session session, Searched searched) {
+    return session.q.book(0);
+  }
+
+  @Benchmark
+  public String pay(Session session, Booked booked) {
+    return session.q.pay(booked.reservationId);
+  }
+
+  @Benchmark
+  public String reservations(Session session, History history) {
+    return session.q.reservations();
+  }
+}
@@ -0,0 +1,103 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * Generates a synthetic Flights table for benchmarking.
+ *
+ * Flights connect CITY_COUNT made-up cities over a 31-day month, with a skewed choice of
+ * endpoints so that a few hub cities carry most of the traffic, like the real data set.  Every
+ * flight gets a large capacity so that booking benchmarks never run out of seats.
+ */
+public class SyntheticFlights {
+  static final int CITY_COUNT = 60;
+  static final int DAYS = 31;
+  static final int FIRST_FID = 1;
+
+  private static final String CREATE_FLIGHTS_SQL = "IF OBJECT_ID('Flights') IS NULL "
+                                                 + "CREATE TABLE Flights (fid INT PRIMARY KEY, day_of_month INT, carrier_id VARCHAR(7), "
+                                                 + "flight_num VARCHAR(10), origin_city VARCHAR(34), dest_city VARCHAR(34), "
+                                                 + "actual_time INT, capacity INT, price INT, canceled INT)";
+
+  private static final String COUNT_FLIGHTS_SQL = "SELECT COUNT(*) AS num_flights FROM Flights";
+
+  private static final String INSERT_FLIGHT_SQL = "INSERT INTO Flights (fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+                                                + "actual_time, capacity, price, canceled) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private static final String[] CARRIERS = {"AS", "B6", "WN", "UA", "DL", "AA"};
+
+  /**
+   * Name of the i'th synthetic city
+   */
+  static String city(int i) {
+    return "City" + i + " XX";
+  }
+
+  /**
+   * Picks a city index, favoring low indexes so that a few hubs are busy
+   */
+  static int pickCity(Random random) {
+    double u = random.nextDouble();
+    return (int) (CITY_COUNT * u * u);
+  }
+
+  /**
+   * Fills an empty Flights table with {@code numFlights} synthetic rows.  A table that already
+   * has rows is left alone, so a real data set is never overwritten.
+   *
+   * @return the number of rows in Flights afterwards
+   */
+  static int load(Connection conn, int numFlights, long seed) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute(CREATE_FLIGHTS_SQL);
+      try (ResultSet rs = stmt.executeQuery(COUNT_FLIGHTS_SQL)) {
+        rs.next();
+        int existing = rs.getInt("num_flights");
+        if (existing > 0) {
+          return existing;
+        }
+      }
+    }
+
+    Random random = new Random(seed);
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try (PreparedStatement insert = conn.prepareStatement(INSERT_FLIGHT_SQL)) {
+      for (int i = 0; i < numFlights; i++) {
+        int origin = pickCity(random);
+        int dest = pickCity(random);
+        if (dest == origin) {
+          dest = (origin + 1 + random.nextInt(CITY_COUNT - 1)) % CITY_COUNT;
+        }
+        String carrier = CARRIERS[random.nextInt(CARRIERS.length)];
+
+        insert.setInt(1, FIRST_FID + i);
+        insert.setInt(2, 1 + random.nextInt(DAYS));
+        insert.setString(3, carrier);
+        insert.setString(4, Integer.toString(1 + random.nextInt(5000)));
+        insert.setString(5, city(origin));
+        insert.setString(6, city(dest));
+        insert.setInt(7, 30 + random.nextInt(400));
+        insert.setInt(8, 1000000);
+        insert.setInt(9, 50 + random.nextInt(950));
+        insert.setInt(10, random.nextInt(100) < 2 ? 1 : 0);
+        insert.addBatch();
+
+        if (i % 1000 == 999) {
+          insert.executeBatch();
+          conn.commit();
+        }
+      }
+      insert.executeBatch();
+      conn.commit();
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+    return numFlights;
+  }
+}
@@ -0,0 +1,180 @@
+package flightapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays a stream of commands through one session, for batch clients.
+ *
+ * Commands run one at a time and in order, exactly as the REPL would run them, and responses
+ * are written in the same order through the caller's (buffered) writer, as they are listed.
+ * Meanwhile the next few commands are read ahead, and the searches among them run early on
+ * background threads, since a search's result does not depend on the session.  When the
+ * session reaches a search, it waits for its prefetch, if it started, and lists that result
+ * rather than searching again.
+ *
+ * Settings are read from dbconn.properties (or java system properties):
+ *   flightapp.pipeline.lookahead          commands read ahead of the session (default 256)
+ *   flightapp.pipeline.prefetch_threads   threads running searches early (default cores - 1)
+ */
+public class CommandPipeline {
+  private final Query q;
+  private final int lookahead;
+  private final ExecutorService prefetchers;
+  private final CommandTokenizer sessionTokens = new CommandTokenizer();
+  private final CommandTokenizer prefetchTokens = new CommandTokenizer();
+
+  private long commands;
+  private long prefetched;
+
+  public CommandPipeline(Query q) throws IOException {
+    this(q, DBConnUtils.getIntProperty("flightapp.pipeline.lookahead", 256),
+         DBConnUtils.getIntProperty("flightapp.pipeline.prefetch_threads",
+                                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1)));
+  }
+
+  public CommandPipeline(Query q, int lookahead, int prefetchThreads) {
+    if (lookahead < 1 || prefetchThreads < 1) {
+      throw new IllegalArgumentException("Lookahead and prefetch threads must be positive");
+    }
+    this.q = q;
+    this.lookahead = lookahead;
+    this.prefetchers = Executors.newFixedThreadPool(prefetchThreads, r -> {
+      Thread t = new Thread(r, "search-prefetcher");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Runs every command from {@code in} until it ends or a command quits, writing each
+   * response to {@code out}.  Blank lines are skipped.  Returns the number of commands run.
+   */
+  public long run(BufferedReader in, Writer out) throws IOException {
+    Deque<Pending> window = new ArrayDeque<>();
+    boolean more = true;
+    try {
+      while (true) {
+        // Keep the window full, starting prefetches for the searches that enter it
+        while (more && window.size() < lookahead) {
+          String command = in.readLine();
+          if (command == null) {
+            more = false;
+          } else if (!command.isBlank()) {
+            window.addLast(new Pending(command, prefetch(command)));
+          }
+        }
+        Pending next = window.pollFirst();
+        if (next == null) {
+          break;
+        }
+
+        SearchCache.Result found = awaitPrefetch(next.prefetch);
+        boolean quit = false;
+        if (found != null) {
+          q.search(found, out);
+        } else {
+          quit = !FlightService.execute(q, sessionTokens, next.command, out);
+        }
+        commands++;
+        if (quit) {
+          break;
+        }
+      }
+    } finally {
+      for (Pending p : window) {
+        if (p.prefetch != null) {
+          p.prefetch.cancel(false);
+        }
+      }
+      out.flush();
+    }
+    return commands;
+  }
+
+  public long commands() {
+    return commands;
+  }
+
+  /**
+   * Number of searches that were started ahead of the session
+   */
+  public long prefetched() {
+    return prefetched;
+  }
+
+  /**
+   * Stops the prefetch threads
+   */
+  public void shutdown() {
+    prefetchers.shutdownNow();
+  }
+
+  /**
+   * Starts running the command early if it is a well-formed search, returning its future, or
+   * returns null otherwise.  Malformed searches are left for the session to report.
+   */
+  private Future<SearchCache.Result> prefetch(String command) {
+    CommandTokenizer tokens = prefetchTokens;
+    int numTokens = tokens.tokenize(command.trim());
+    if ((numTokens != 6 && numTokens != 7) || tokens.kind() != CommandTokenizer.Kind.SEARCH) {
+      return null;
+    }
+    int maxStops;
+    int day;
+    int count;
+    try {
+      day = tokens.intValue(4);
+      count = tokens.intValue(5);
+      maxStops = tokens.tokenEquals(3, "1") ? 0 : numTokens == 7 ? tokens.intValue(6) : 1;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (maxStops < 0 || maxStops > FlightIndex.MAX_STOPS) {
+      return null;
+    }
+
+    String origin = tokens.string(1);
+    String dest = tokens.string(2);
+    FlightIndex index = q.flightIndex();
+    prefetched++;
+    return prefetchers.submit(() -> index.search(origin, dest, day, maxStops, count));
+  }
+
+  /**
+   * Cancels the prefetch if it has not started, or waits for it to finish and returns its
+   * result.  Returns null if there was no prefetch, or it was cancelled or failed; the session
+   * then runs the command itself and reports any failure.
+   */
+  private static SearchCache.Result awaitPrefetch(Future<SearchCache.Result> prefetch) {
+    if (prefetch == null || prefetch.cancel(false)) {
+      return null;
+    }
+    try {
+      return prefetch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | CancellationException e) {
+      // Left for the session's own search
+    }
+    return null;
+  }
+
+  private static class Pending {
+    final String command;
+    final Future<SearchCache.Result> prefetch;
+
+    Pending(String command, Future<SearchCache.Result> prefetch) {
+      this.command = command;
+      this.prefetch = prefetch;
+    }
+  }
+}
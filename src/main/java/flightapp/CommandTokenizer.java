@@ -0,0 +1,227 @@
+package flightapp;
+
+import java.util.Arrays;
+
+/**
+ * Splits a command line into tokens the way the regex {@code "([^"]*)"|(\S+)} does: a double
+ * quote with a closing quote after it starts a quoted token, which is everything up to that
+ * closing quote (so "Seattle WA" is one token); anything else is a run of non-whitespace.
+ *
+ * One tokenizer is reused for every command of a session.  Token boundaries go into a
+ * preallocated buffer and each token is a {@link CharSequence} view of the command, so
+ * tokenizing allocates nothing once the buffer has grown to the longest command.  Strings are
+ * only built by {@link #string(int)}.  Not thread-safe.
+ */
+public class CommandTokenizer {
+  /**
+   * The commands the application understands
+   */
+  public enum Kind {
+    LOGIN("login"),
+    CREATE("create"),
+    SEARCH("search"),
+    BOOK("book"),
+    PAY("pay"),
+    RESERVATIONS("reservations"),
+    QUIT("quit"),
+    UNKNOWN(null);
+
+    private final String name;
+
+    Kind(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Returns the command named by the characters, or UNKNOWN.  The length and first character
+     * pick the only candidate, so at most one name is compared.
+     */
+    static Kind of(CharSequence chars) {
+      Kind kind;
+      switch (chars.length()) {
+        case 3:
+          kind = PAY;
+          break;
+        case 4:
+          kind = chars.charAt(0) == 'b' ? BOOK : QUIT;
+          break;
+        case 5:
+          kind = LOGIN;
+          break;
+        case 6:
+          kind = chars.charAt(0) == 'c' ? CREATE : SEARCH;
+          break;
+        case 12:
+          kind = RESERVATIONS;
+          break;
+        default:
+          return UNKNOWN;
+      }
+      return kind.name.contentEquals(chars) ? kind : UNKNOWN;
+    }
+  }
+
+  private static final int INITIAL_TOKENS = 8;
+
+  private CharSequence command = "";
+  private int count;
+  private int[] starts = new int[INITIAL_TOKENS];
+  private int[] ends = new int[INITIAL_TOKENS];
+  private Token[] tokens = newTokens(0, INITIAL_TOKENS);
+
+  /**
+   * Tokenizes the command, replacing the previous one's tokens, and returns the number of
+   * tokens
+   */
+  public int tokenize(CharSequence command) {
+    this.command = command;
+    count = 0;
+    int length = command.length();
+
+    // A quote has a closing quote after it iff it comes before the last quote
+    int lastQuote = length - 1;
+    while (lastQuote >= 0 && command.charAt(lastQuote) != '"') {
+      lastQuote--;
+    }
+
+    int i = 0;
+    while (i < length) {
+      char c = command.charAt(i);
+      if (isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '"' && i < lastQuote) {
+        int close = i + 1;
+        while (command.charAt(close) != '"') {
+          close++;
+        }
+        add(i + 1, close);
+        i = close + 1;
+        continue;
+      }
+      int end = i + 1;
+      while (end < length && !isWhitespace(command.charAt(end))) {
+        end++;
+      }
+      add(i, end);
+      i = end;
+    }
+    return count;
+  }
+
+  /**
+   * Number of tokens in the last command
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * The command named by the first token, or UNKNOWN if there are no tokens
+   */
+  public Kind kind() {
+    return count == 0 ? Kind.UNKNOWN : Kind.of(tokens[0]);
+  }
+
+  /**
+   * A view of the i-th token, valid until the next call to {@link #tokenize}
+   */
+  public CharSequence token(int i) {
+    checkIndex(i);
+    return tokens[i];
+  }
+
+  /**
+   * The i-th token as a new String
+   */
+  public String string(int i) {
+    checkIndex(i);
+    return command.subSequence(starts[i], ends[i]).toString();
+  }
+
+  /**
+   * Parses the i-th token like {@link Integer#parseInt(String)}, without building a String
+   *
+   * @throws NumberFormatException if the token is not a decimal int
+   */
+  public int intValue(int i) {
+    checkIndex(i);
+    return Integer.parseInt(command, starts[i], ends[i], 10);
+  }
+
+  /**
+   * Whether the i-th token is exactly the given text
+   */
+  public boolean tokenEquals(int i, String text) {
+    checkIndex(i);
+    return text.contentEquals(tokens[i]);
+  }
+
+  private void add(int start, int end) {
+    if (count == starts.length) {
+      int n = count * 2;
+      starts = Arrays.copyOf(starts, n);
+      ends = Arrays.copyOf(ends, n);
+      Token[] grown = Arrays.copyOf(tokens, n);
+      System.arraycopy(newTokens(count, n), count, grown, count, n - count);
+      tokens = grown;
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  private Token[] newTokens(int from, int to) {
+    Token[] made = new Token[to];
+    for (int i = from; i < to; i++) {
+      made[i] = new Token(i);
+    }
+    return made;
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= count) {
+      throw new IndexOutOfBoundsException("Token " + i + " of " + count);
+    }
+  }
+
+  // Exactly the characters the regex \s matches
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * A view of one slot of the token buffer
+   */
+  private class Token implements CharSequence {
+    private final int index;
+
+    Token(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public int length() {
+      return ends[index] - starts[index];
+    }
+
+    @Override
+    public char charAt(int i) {
+      if (i < 0 || i >= length()) {
+        throw new IndexOutOfBoundsException(i);
+      }
+      return command.charAt(starts[index] + i);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return command.subSequence(starts[index] + start, starts[index] + end);
+    }
+
+    @Override
+    public String toString() {
+      return command.subSequence(starts[index], ends[index]).toString();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of database connections shared by every session in the process.
+ *
+ * Sessions borrow a connection for the length of one command and give it back afterwards, so
+ * mostly-idle sessions do not each hold a server connection.  Connections that sit idle for
+ * longer than the idle timeout are closed in the background, and a connection that has been
+ * idle for a while is validated before it is handed out again.
+ *
+ * Settings are read from dbconn.properties (or java system properties):
+ *   flightapp.pool.max_size              most connections open at once (default 16)
+ *   flightapp.pool.idle_timeout_secs     close connections idle this long (default 300)
+ *   flightapp.pool.validate_after_secs   validate connections idle this long (default 30)
+ *   flightapp.pool.borrow_timeout_secs   how long to wait for a free connection (default 30)
+ *
+ * Released connections go back to the read isolation level (see
+ * {@link DBConnUtils#getReadIsolation()}).
+ */
+public class ConnectionPool {
+  private static final int VALIDATION_TIMEOUT_SECS = 5;
+
+  private static ConnectionPool instance;
+
+  private final int maxSize;
+  private final long idleTimeoutMillis;
+  private final long validateAfterMillis;
+  private final long borrowTimeoutMillis;
+  private final int readIsolation;
+
+  // Permits for connections that may still be borrowed
+  private final Semaphore permits;
+
+  // Connections not currently borrowed, most recently released first
+  private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+  private final ScheduledExecutorService evictor;
+
+  /**
+   * Returns the process-wide pool, creating it on first use
+   */
+  public static synchronized ConnectionPool getInstance() throws IOException {
+    if (instance == null) {
+      instance = new ConnectionPool(
+          DBConnUtils.getIntProperty("flightapp.pool.max_size", 16),
+          DBConnUtils.getIntProperty("flightapp.pool.idle_timeout_secs", 300),
+          DBConnUtils.getIntProperty("flightapp.pool.validate_after_secs", 30),
+          DBConnUtils.getIntProperty("flightapp.pool.borrow_timeout_secs", 30),
+          DBConnUtils.getReadIsolation());
+    }
+    return instance;
+  }
+
+  ConnectionPool(int maxSize, int idleTimeoutSecs, int validateAfterSecs, int borrowTimeoutSecs,
+                 int readIsolation) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSecs);
+    this.validateAfterMillis = TimeUnit.SECONDS.toMillis(validateAfterSecs);
+    this.borrowTimeoutMillis = TimeUnit.SECONDS.toMillis(borrowTimeoutSecs);
+    this.readIsolation = readIsolation;
+    this.permits = new Semaphore(maxSize, true);
+
+    this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "connection-pool-evictor");
+      t.setDaemon(true);
+      return t;
+    });
+    long period = Math.max(1000, idleTimeoutMillis / 2);
+    evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Borrows a connection, waiting up to the borrow timeout for one to become free.  The caller
+   * must close() the returned connection to give it back.
+   */
+  public PooledConnection borrow() throws SQLException {
+    try {
+      if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Timed out waiting for one of " + maxSize
+                               + " pooled database connections");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection", e);
+    }
+
+    try {
+      PooledConnection pc;
+      while ((pc = pollIdle()) != null) {
+        if (isUsable(pc)) {
+          pc.markBorrowed();
+          return pc;
+        }
+        pc.closePhysical();
+      }
+      pc = new PooledConnection(this, DBConnUtils.openConnection());
+      pc.markBorrowed();
+      return pc;
+    } catch (SQLException | IOException | RuntimeException e) {
+      permits.release();
+      if (e instanceof SQLException) {
+        throw (SQLException) e;
+      }
+      throw new SQLException("Failed to open a database connection", e);
+    }
+  }
+
+  private synchronized PooledConnection pollIdle() {
+    return idle.pollFirst();
+  }
+
+  private boolean isUsable(PooledConnection pc) {
+    long idleMillis = System.currentTimeMillis() - pc.lastReleasedMillis();
+    if (idleMillis < validateAfterMillis) {
+      return true;
+    }
+    try {
+      return pc.connection().isValid(VALIDATION_TIMEOUT_SECS);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Takes back a borrowed connection, resetting it to the defaults set by
+   * {@link DBConnUtils#openConnection()}.  Connections that cannot be reset are discarded.
+   */
+  void release(PooledConnection pc) {
+    try {
+      Connection conn = pc.connection();
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      if (conn.getTransactionIsolation() != readIsolation) {
+        conn.setTransactionIsolation(readIsolation);
+      }
+      pc.markReleased();
+      synchronized (this) {
+        idle.addFirst(pc);
+      }
+    } catch (SQLException e) {
+      pc.closePhysical();
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Closes connections that have been idle for longer than the idle timeout
+   */
+  void evictIdle() {
+    long now = System.currentTimeMillis();
+    List<PooledConnection> expired = new ArrayList<>();
+    synchronized (this) {
+      // The least recently released connections are at the end
+      Iterator<PooledConnection> it = idle.descendingIterator();
+      while (it.hasNext()) {
+        PooledConnection pc = it.next();
+        if (now - pc.lastReleasedMillis() < idleTimeoutMillis) {
+          break;
+        }
+        it.remove();
+        expired.add(pc);
+      }
+    }
+    for (PooledConnection pc : expired) {
+      pc.closePhysical();
+    }
+  }
+}
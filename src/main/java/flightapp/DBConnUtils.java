@@ -11,6 +11,12 @@ import java.util.Properties;
  * A collection of utility methods to help with parsing dbconn.properties.
  */
 public class DBConnUtils {
+  // SQL Server's snapshot isolation level (SQLServerConnection.TRANSACTION_SNAPSHOT)
+  public static final int TRANSACTION_SNAPSHOT = 0x1000;
+
+  // dbconn.properties, read once per process
+  private static Properties configProps;
+
   /**
    * Open and return a connection using dbconn.properties file
    *
@@ -19,8 +25,7 @@ public class DBConnUtils {
    */
   public static Connection openConnection() throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = loadProperties();
 
     String serverURL = configProps.getProperty("flightapp.server_url");
     String dbName = configProps.getProperty("flightapp.database_name");
@@ -28,15 +33,15 @@ public class DBConnUtils {
     String password = configProps.getProperty("flightapp.password");
 
     String connectionUrl =
-        String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", 
+        String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s",
                       serverURL, dbName, adminName, password);
     Connection conn = DriverManager.getConnection(connectionUrl);
 
     // By default, automatically commit after each statement
     conn.setAutoCommit(true);
 
-    // By default, set the transaction isolation level to serializable
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    // By default, run at the read isolation level; writes escalate for their own transactions
+    conn.setTransactionIsolation(getReadIsolation());
 
     return conn;
   }
@@ -49,8 +54,7 @@ public class DBConnUtils {
    */
   public static String getTableSuffix() throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = loadProperties();
 
     final String PROPERTY_NAME = "flightapp.tablename_suffix";
 
@@ -65,4 +69,87 @@ public class DBConnUtils {
       return suffix;
     }
   }
+
+  /**
+   * Get a setting, from dbconn.properties or else from the java system properties
+   *
+   * @returns defaultValue if the setting wasn't specified in either place
+   * @throws IOException
+   */
+  public static String getProperty(String name, String defaultValue) throws IOException {
+    String value = loadProperties().getProperty(name);
+    if (value == null || value.isEmpty()) {
+      value = System.getProperty(name);
+    }
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
+  /**
+   * Get an integer setting, from dbconn.properties or else from the java system properties
+   *
+   * @returns defaultValue if the setting wasn't specified in either place
+   * @throws IOException
+   */
+  public static int getIntProperty(String name, int defaultValue) throws IOException {
+    String value = getProperty(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value);
+  }
+
+  /**
+   * Get a transaction isolation level setting, named like the java.sql.Connection constants
+   * without their TRANSACTION_ prefix (eg, READ_COMMITTED), or SNAPSHOT for SQL Server's
+   * snapshot isolation
+   *
+   * @returns defaultLevel if the setting wasn't specified
+   * @throws IOException
+   */
+  public static int getIsolationProperty(String name, int defaultLevel) throws IOException {
+    String value = getProperty(name, null);
+    if (value == null) {
+      return defaultLevel;
+    }
+    switch (value.toUpperCase()) {
+      case "READ_UNCOMMITTED":
+        return Connection.TRANSACTION_READ_UNCOMMITTED;
+      case "READ_COMMITTED":
+        return Connection.TRANSACTION_READ_COMMITTED;
+      case "REPEATABLE_READ":
+        return Connection.TRANSACTION_REPEATABLE_READ;
+      case "SERIALIZABLE":
+        return Connection.TRANSACTION_SERIALIZABLE;
+      case "SNAPSHOT":
+        return TRANSACTION_SNAPSHOT;
+      default:
+        throw new IllegalArgumentException("Unknown isolation level for " + name + ": " + value);
+    }
+  }
+
+  /**
+   * The isolation level connections default to, which read-only commands run at.  Set
+   * flightapp.read.isolation (default READ_COMMITTED, which reads row versions rather than
+   * taking shared locks when the database has READ_COMMITTED_SNAPSHOT on, as Azure SQL
+   * databases do).  SNAPSHOT needs ALLOW_SNAPSHOT_ISOLATION on.
+   *
+   * @throws IOException
+   */
+  public static int getReadIsolation() throws IOException {
+    return getIsolationProperty("flightapp.read.isolation", Connection.TRANSACTION_READ_COMMITTED);
+  }
+
+  private static synchronized Properties loadProperties() throws IOException {
+    if (configProps == null) {
+      Properties props = new Properties();
+      try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+        props.load(in);
+      }
+      configProps = props;
+    }
+    return configProps;
+  }
 }
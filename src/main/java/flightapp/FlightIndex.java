@@ -0,0 +1,572 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An in-memory index over the non-canceled rows of the Flights table, used to answer searches
+ * without going back to the database.
+ *
+ * Rows of the shared {@link FlightStore} are bucketed by (origin_city, day_of_month) and by
+ * (dest_city, day_of_month), and each bucket is kept sorted by actual_time, then fid.  City
+ * names are matched case-insensitively, like the database's default collation does.
+ *
+ * The Flights table is static, so the index is loaded once per process and shared by every
+ * session.  Ranked results for popular searches are kept in a {@link SearchCache}, sized by
+ * flightapp.search_cache.size (default 1024 entries, 0 to disable).  One-stop searches also
+ * remember the connecting hubs of recent (origin, dest, day) triples, ranked by the shortest
+ * pair through each hub, in a cache sized by flightapp.hub_cache.size (default 1024).
+ * Searches with more stops give up, failing, once they have built flightapp.search.max_routes
+ * partial routes (default 200000), so that one search cannot use up the memory every session
+ * shares.
+ */
+public class FlightIndex {
+  /**
+   * The most stops a search can ask for
+   */
+  public static final int MAX_STOPS = 3;
+
+  private static final int MAX_DAY = 31;
+  private static final int[] NO_ROWS = new int[0];
+  private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  private static volatile FlightIndex instance;
+
+  private final FlightStore store;
+
+  // Row numbers, indexed by cityKey * (MAX_DAY + 1) + day
+  private final int[][] byOrigin;
+  private final int[][] byDest;
+
+  private final SearchCache cache;
+
+  // Hubs of recent one-stop searches, keyed like the search cache, least recently used first
+  private final int maxHubEntries;
+  private final Map<Long, Hubs> hubCache;
+
+  // Most partial routes one connecting search may build
+  private final int maxRoutes;
+
+  /**
+   * Returns the shared index, loading it with the given connection the first time it is needed.
+   */
+  public static FlightIndex getInstance(Connection conn) throws SQLException, IOException {
+    FlightIndex index = instance;
+    if (index == null) {
+      synchronized (FlightIndex.class) {
+        index = instance;
+        if (index == null) {
+          index = new FlightIndex(FlightStore.load(conn),
+              new SearchCache(DBConnUtils.getIntProperty("flightapp.search_cache.size", 1024)),
+              DBConnUtils.getIntProperty("flightapp.hub_cache.size", 1024),
+              DBConnUtils.getIntProperty("flightapp.search.max_routes", 200000));
+          instance = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  FlightIndex(FlightStore store, SearchCache cache, int maxHubEntries, int maxRoutes) {
+    this.store = store;
+    this.maxRoutes = maxRoutes;
+    this.cache = cache;
+    this.byOrigin = buildBuckets(true);
+    this.byDest = buildBuckets(false);
+    this.maxHubEntries = maxHubEntries;
+    this.hubCache = new LinkedHashMap<Long, Hubs>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Hubs> eldest) {
+        return size() > FlightIndex.this.maxHubEntries;
+      }
+    };
+  }
+
+  private int[][] buildBuckets(boolean byOriginCity) {
+    int buckets = store.cityKeyCount() * (MAX_DAY + 1);
+
+    // Count the rows in each bucket, then fill them
+    int[] counts = new int[buckets];
+    for (int row = 0; row < store.size(); row++) {
+      int b = bucketOf(row, byOriginCity);
+      if (b >= 0) {
+        counts[b]++;
+      }
+    }
+    int[][] result = new int[buckets][];
+    for (int b = 0; b < buckets; b++) {
+      result[b] = counts[b] == 0 ? NO_ROWS : new int[counts[b]];
+      counts[b] = 0;
+    }
+    for (int row = 0; row < store.size(); row++) {
+      int b = bucketOf(row, byOriginCity);
+      if (b >= 0) {
+        result[b][counts[b]++] = row;
+      }
+    }
+
+    for (int[] rows : result) {
+      sortByTime(rows);
+    }
+    return result;
+  }
+
+  private int bucketOf(int row, boolean byOriginCity) {
+    int day = store.day(row);
+    if (day < 1 || day > MAX_DAY) {
+      return -1;
+    }
+    int cityKey = byOriginCity ? store.originKey(row) : store.destKey(row);
+    return cityKey * (MAX_DAY + 1) + day;
+  }
+
+  // Rows are in fid order already, so ordering by (time, row) gives (time, fid) order
+  private void sortByTime(int[] rows) {
+    if (rows.length < 2) {
+      return;
+    }
+    long[] keyed = new long[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      keyed[i] = ((long) store.time(rows[i]) << 32) | rows[i];
+    }
+    Arrays.sort(keyed);
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = (int) keyed[i];
+    }
+  }
+
+  private int[] lookup(int[][] buckets, String city, int day) {
+    if (day < 1 || day > MAX_DAY) {
+      return NO_ROWS;
+    }
+    int cityKey = store.cityKey(city);
+    if (cityKey < 0) {
+      return NO_ROWS;
+    }
+    return buckets[cityKey * (MAX_DAY + 1) + day];
+  }
+
+  private int[] lookup(int[][] buckets, int cityKey, int day) {
+    return buckets[cityKey * (MAX_DAY + 1) + day];
+  }
+
+  /**
+   * The shared columnar store whose row numbers this index returns
+   */
+  public FlightStore store() {
+    return store;
+  }
+
+  /**
+   * Searches for up to {@code limit} itineraries from origin to dest on the given day.  Direct
+   * flights take the first slots, and routes with up to {@code maxStops} stops fill the rest.
+   * Results come from the shared cache when it can answer the request.
+   *
+   * @throws IllegalArgumentException if maxStops is negative or more than MAX_STOPS
+   */
+  public SearchCache.Result search(String origin, String dest, int day, int maxStops,
+                                   int limit) {
+    if (maxStops < 0 || maxStops > MAX_STOPS) {
+      throw new IllegalArgumentException("Searches can make 0 to " + MAX_STOPS + " stops");
+    }
+    int originKey = store.cityKey(origin);
+    int destKey = store.cityKey(dest);
+    if (limit <= 0 || originKey < 0 || destKey < 0 || day < 1 || day > MAX_DAY) {
+      return SearchCache.Result.EMPTY;
+    }
+
+    long key = SearchCache.key(originKey, destKey, day, maxStops);
+    SearchCache.Result result = cache.get(key, limit);
+    if (result != null) {
+      return result;
+    }
+
+    int[] direct = searchDirect(origin, dest, day, limit);
+    List<int[]> indirect;
+    if (maxStops == 0) {
+      indirect = Collections.emptyList();
+    } else if (maxStops == 1) {
+      indirect = searchIndirect(origin, dest, day, limit - direct.length);
+    } else {
+      indirect = searchConnecting(originKey, destKey, day, maxStops, limit - direct.length);
+    }
+    boolean complete = direct.length < limit
+        && (maxStops == 0 || indirect.size() < limit - direct.length);
+    result = new SearchCache.Result(direct, indirect, limit, complete);
+    cache.put(key, result);
+    return result;
+  }
+
+  /**
+   * Returns the rows of up to {@code limit} direct flights from origin to dest on the given
+   * day, ordered by actual_time, then fid.
+   */
+  public int[] searchDirect(String origin, String dest, int day, int limit) {
+    int destKey = store.cityKey(dest);
+    if (limit <= 0 || destKey < 0) {
+      return NO_ROWS;
+    }
+
+    int[] candidates = lookup(byOrigin, origin, day);
+    int[] result = new int[Math.min(limit, candidates.length)];
+    int n = 0;
+    for (int i = 0; i < candidates.length && n < result.length; i++) {
+      if (store.destKey(candidates[i]) == destKey) {
+        result[n++] = candidates[i];
+      }
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  /**
+   * Returns the rows of up to {@code limit} one-stop flight pairs from origin to dest on the
+   * given day, where the first leg lands in the city the second leg departs from.  Pairs are
+   * ordered by total actual_time, then the first leg's fid, then the second leg's fid.
+   *
+   * Hubs are expanded from the one with the shortest possible pair up, and the search stops at
+   * the first hub that cannot beat the worst of the best {@code limit} pairs found so far.
+   */
+  public List<int[]> searchIndirect(String origin, String dest, int day, int limit) {
+    List<int[]> result = new ArrayList<>();
+    if (limit <= 0) {
+      return result;
+    }
+    Hubs hubs = hubs(origin, dest, day);
+
+    // Keep the best `limit` pairs seen so far, with the worst one on top
+    PriorityQueue<int[]> best = new PriorityQueue<>(Math.min(limit, 64),
+                                                    (a, b) -> compareRoutes(b, a));
+    for (int h = 0; h < hubs.lowerBounds.length; h++) {
+      if (best.size() == limit && hubs.lowerBounds[h] > totalTime(best.peek())) {
+        break;
+      }
+      int firstEnd = hubs.firstStarts[h + 1];
+      int secondStart = hubs.secondStarts[h];
+      int secondEnd = hubs.secondStarts[h + 1];
+      int shortestSecond = store.time(hubs.secondLegs[secondStart]);
+
+      for (int i = hubs.firstStarts[h]; i < firstEnd; i++) {
+        int first = hubs.firstLegs[i];
+        int firstTime = store.time(first);
+        if (best.size() == limit && firstTime + shortestSecond > totalTime(best.peek())) {
+          break;
+        }
+        for (int j = secondStart; j < secondEnd; j++) {
+          int second = hubs.secondLegs[j];
+          if (best.size() == limit
+              && firstTime + store.time(second) > totalTime(best.peek())) {
+            break;
+          }
+          int[] pair = new int[] {first, second};
+          if (best.size() < limit) {
+            best.add(pair);
+          } else if (compareRoutes(pair, best.peek()) < 0) {
+            best.poll();
+            best.add(pair);
+          }
+        }
+      }
+    }
+
+    result.addAll(best);
+    result.sort(this::compareRoutes);
+    return result;
+  }
+
+  /**
+   * Returns the rows of up to {@code limit} routes from origin to dest on the given day, with
+   * one to {@code maxStops} stops, ordered by {@link #compareRoutes}.  Routes never pass
+   * through the same city twice.
+   *
+   * Partial routes are expanded best-first, by their time so far plus the shortest time from
+   * where they are to dest in the legs they have left.  That never overestimates, so routes
+   * are completed in order of total time, and the search stops once every partial route left
+   * is slower than the {@code limit}'th route found.  Partial routes that cannot reach dest in
+   * the legs they have left are never built.
+   *
+   * @throws IllegalStateException if the search builds more than flightapp.search.max_routes
+   *                               partial routes
+   */
+  List<int[]> searchConnecting(int originKey, int destKey, int day, int maxStops, int limit) {
+    List<int[]> found = new ArrayList<>();
+    if (limit <= 0) {
+      return found;
+    }
+    int[][] toDest = shortestToDest(destKey, day, maxStops + 1);
+    if (toDest[maxStops + 1][originKey] == UNREACHABLE) {
+      return found;
+    }
+
+    PriorityQueue<Route> open = new PriorityQueue<>(Comparator.comparingInt(r -> r.bound));
+    open.add(new Route(null, -1, originKey, 0, toDest[maxStops + 1][originKey]));
+    int cutoff = Integer.MAX_VALUE; // total time of the limit'th route found
+    int routes = 1;
+
+    while (!open.isEmpty()) {
+      Route route = open.poll();
+      if (route.bound > cutoff) {
+        break;
+      }
+
+      // A complete route; direct flights are searched for separately
+      if (route.city == destKey && route.legs > 0) {
+        if (route.legs > 1) {
+          found.add(route.rows());
+          if (found.size() == limit) {
+            cutoff = route.time;
+          }
+        }
+        continue;
+      }
+
+      // Legs the route may still take after the next one
+      int legsLeft = maxStops - route.legs;
+      for (int next : lookup(byOrigin, route.city, day)) {
+        int time = route.time + store.time(next);
+        if (time > cutoff) {
+          break;
+        }
+        int to = store.destKey(next);
+        int bound = time;
+        if (to != destKey) {
+          int rest = toDest[legsLeft][to];
+          if (rest == UNREACHABLE || route.visits(to)) {
+            continue;
+          }
+          bound += rest;
+        }
+        if (bound <= cutoff) {
+          if (++routes > maxRoutes) {
+            throw new IllegalStateException("Search gave up after " + maxRoutes + " routes");
+          }
+          open.add(new Route(route, next, to, time, bound));
+        }
+      }
+    }
+
+    // Routes tied with the limit'th one are all found, so the fid tie-breaks can pick among them
+    found.sort(this::compareRoutes);
+    return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+  }
+
+  // shortest[k][city] is the shortest time from city to dest on the day in at most k legs, or
+  // UNREACHABLE; routes may pass through a city twice here, so it never overestimates
+  private int[][] shortestToDest(int destKey, int day, int maxLegs) {
+    int cities = store.cityKeyCount();
+    int[][] shortest = new int[maxLegs + 1][];
+    shortest[0] = new int[cities];
+    Arrays.fill(shortest[0], UNREACHABLE);
+    shortest[0][destKey] = 0;
+    for (int k = 1; k <= maxLegs; k++) {
+      int[] fewer = shortest[k - 1];
+      int[] times = fewer.clone();
+      for (int city = 0; city < cities; city++) {
+        if (fewer[city] == UNREACHABLE) {
+          continue;
+        }
+        for (int row : lookup(byDest, city, day)) {
+          int from = store.originKey(row);
+          times[from] = Math.min(times[from], store.time(row) + fewer[city]);
+        }
+      }
+      shortest[k] = times;
+    }
+    return shortest;
+  }
+
+  // The hubs between origin and dest on the day, from the cache or else computed
+  private Hubs hubs(String origin, String dest, int day) {
+    int originKey = store.cityKey(origin);
+    int destKey = store.cityKey(dest);
+    if (originKey < 0 || destKey < 0 || day < 1 || day > MAX_DAY) {
+      return Hubs.NONE;
+    }
+
+    long key = SearchCache.key(originKey, destKey, day, 1);
+    Hubs hubs;
+    synchronized (hubCache) {
+      hubs = hubCache.get(key);
+    }
+    if (hubs == null) {
+      hubs = buildHubs(lookup(byOrigin, origin, day), lookup(byDest, dest, day));
+      if (maxHubEntries > 0) {
+        synchronized (hubCache) {
+          hubCache.put(key, hubs);
+        }
+      }
+    }
+    return hubs;
+  }
+
+  // Groups first and last legs by the hub they meet at, keeping hubs both sides reach
+  private Hubs buildHubs(int[] firstLegs, int[] lastLegs) {
+    if (firstLegs.length == 0 || lastLegs.length == 0) {
+      return Hubs.NONE;
+    }
+
+    // Sort each side by (hub, position); legs of a hub stay in (time, fid) order
+    long[] firstByHub = new long[firstLegs.length];
+    for (int i = 0; i < firstLegs.length; i++) {
+      firstByHub[i] = ((long) store.destKey(firstLegs[i]) << 32) | i;
+    }
+    Arrays.sort(firstByHub);
+    long[] lastByHub = new long[lastLegs.length];
+    for (int i = 0; i < lastLegs.length; i++) {
+      lastByHub[i] = ((long) store.originKey(lastLegs[i]) << 32) | i;
+    }
+    Arrays.sort(lastByHub);
+
+    // Find the hubs on both sides, as (lower bound, first group start, last group start)
+    List<int[]> found = new ArrayList<>();
+    int i = 0;
+    int j = 0;
+    while (i < firstByHub.length && j < lastByHub.length) {
+      long firstHub = firstByHub[i] >>> 32;
+      long lastHub = lastByHub[j] >>> 32;
+      if (firstHub < lastHub) {
+        i = firstOfHub(firstByHub, firstHub + 1);
+      } else if (firstHub > lastHub) {
+        j = firstOfHub(lastByHub, lastHub + 1);
+      } else {
+        int lowerBound = store.time(firstLegs[(int) firstByHub[i]])
+                       + store.time(lastLegs[(int) lastByHub[j]]);
+        found.add(new int[] {lowerBound, i, j});
+        i = firstOfHub(firstByHub, firstHub + 1);
+        j = firstOfHub(lastByHub, lastHub + 1);
+      }
+    }
+    if (found.isEmpty()) {
+      return Hubs.NONE;
+    }
+    found.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+    // Lay the hubs' legs out in that order
+    Hubs hubs = new Hubs(found.size(), firstLegs.length, lastLegs.length);
+    int numFirst = 0;
+    int numSecond = 0;
+    for (int h = 0; h < found.size(); h++) {
+      int[] hub = found.get(h);
+      hubs.lowerBounds[h] = hub[0];
+      hubs.firstStarts[h] = numFirst;
+      hubs.secondStarts[h] = numSecond;
+      long hubKey = firstByHub[hub[1]] >>> 32;
+      for (int k = hub[1]; k < firstByHub.length && (firstByHub[k] >>> 32) == hubKey; k++) {
+        hubs.firstLegs[numFirst++] = firstLegs[(int) firstByHub[k]];
+      }
+      for (int k = hub[2]; k < lastByHub.length && (lastByHub[k] >>> 32) == hubKey; k++) {
+        hubs.secondLegs[numSecond++] = lastLegs[(int) lastByHub[k]];
+      }
+    }
+    hubs.firstStarts[found.size()] = numFirst;
+    hubs.secondStarts[found.size()] = numSecond;
+    return hubs.trim(numFirst, numSecond);
+  }
+
+  // Index of the first entry of byHub that belongs to the hub or a later one, or byHub.length
+  private static int firstOfHub(long[] byHub, long hub) {
+    int i = Arrays.binarySearch(byHub, hub << 32);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  private int totalTime(int[] route) {
+    int time = 0;
+    for (int row : route) {
+      time += store.time(row);
+    }
+    return time;
+  }
+
+  /**
+   * Orders routes by total time, then by each leg's fid in turn.  A route that runs out of legs
+   * sorts as if its next fid were larger than any other.
+   */
+  int compareRoutes(int[] a, int[] b) {
+    int cmp = Integer.compare(totalTime(a), totalTime(b));
+    for (int i = 0; cmp == 0 && i < Math.max(a.length, b.length); i++) {
+      int fidA = i < a.length ? store.fid(a[i]) : Integer.MAX_VALUE;
+      int fidB = i < b.length ? store.fid(b[i]) : Integer.MAX_VALUE;
+      cmp = Integer.compare(fidA, fidB);
+    }
+    return cmp;
+  }
+
+  /**
+   * The one-stop connections from an origin to a destination on one day, grouped by the hub
+   * they connect through.  Hubs are ordered by the shortest pair through them.
+   */
+  private static class Hubs {
+    static final Hubs NONE = new Hubs(0, 0, 0);
+
+    // Per hub: the shortest first leg plus the shortest second leg
+    final int[] lowerBounds;
+
+    // Hub h's first legs are firstLegs[firstStarts[h] .. firstStarts[h + 1]), in (time, fid)
+    // order, and likewise for its second legs
+    final int[] firstStarts;
+    final int[] secondStarts;
+    int[] firstLegs;
+    int[] secondLegs;
+
+    Hubs(int numHubs, int numFirst, int numSecond) {
+      this.lowerBounds = new int[numHubs];
+      this.firstStarts = new int[numHubs + 1];
+      this.secondStarts = new int[numHubs + 1];
+      this.firstLegs = new int[numFirst];
+      this.secondLegs = new int[numSecond];
+    }
+
+    // Drops the unused tails of the leg arrays, left by legs whose hub only one side reaches
+    Hubs trim(int numFirst, int numSecond) {
+      firstLegs = Arrays.copyOf(firstLegs, numFirst);
+      secondLegs = Arrays.copyOf(secondLegs, numSecond);
+      return this;
+    }
+  }
+
+  /**
+   * A partial route from the origin, as a chain of legs back to it
+   */
+  private static class Route {
+    final Route previous;
+    final int row; // the last leg's row, or -1 at the origin
+    final int city; // the city key the route has reached
+    final int time; // total time so far
+    final int bound; // lower bound on the total time of any route extending this one
+    final int legs;
+
+    Route(Route previous, int row, int city, int time, int bound) {
+      this.previous = previous;
+      this.row = row;
+      this.city = city;
+      this.time = time;
+      this.bound = bound;
+      this.legs = previous == null ? 0 : previous.legs + 1;
+    }
+
+    boolean visits(int cityKey) {
+      for (Route r = this; r != null; r = r.previous) {
+        if (r.city == cityKey) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    int[] rows() {
+      int[] rows = new int[legs];
+      for (Route r = this; r.previous != null; r = r.previous) {
+        rows[r.legs - 1] = r.row;
+      }
+      return rows;
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package flightapp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the Flights application over TCP.
+ *
+ * Each client connection is one session with its own {@code Query} (so its own logged-in user
+ * and search results).  Clients send the same one-line commands the REPL accepts, in UTF-8,
+ * and get back exactly the text {@link FlightService#execute} writes, framed so that a client
+ * can tell where each response ends.  Each response is sent as a series of chunks
+ *
+ *   [length]\n[bytes]
+ *
+ * where [length] is the number of bytes that follow, in decimal, ending with an empty chunk,
+ * "0\n".  Together, the chunks' bytes are the UTF-8 encoded response.  Responses are encoded
+ * and sent a chunk at a time while they are listed, so a session never holds a whole search or
+ * reservations listing.  Responses can span several lines or lack a trailing newline, so
+ * clients must read exactly [length] bytes of each chunk rather than lines.  Clients may
+ * pipeline: commands are answered in the order sent, and responses are flushed once no further
+ * command is waiting.  The session ends when the client sends quit or closes the socket, or
+ * after it is sent an error for a command line longer than flightapp.server.max_line_chars.
+ *
+ * Sessions run on virtual threads when the JVM has them (Java 21+), and on a cached pool of
+ * platform threads otherwise.  Sessions only hold a database connection while a command runs,
+ * so thousands of mostly-idle clients can share the connection pool.
+ *
+ * Settings are read from dbconn.properties (or java system properties):
+ *   flightapp.server.max_line_chars   longest command line accepted (default 4096)
+ */
+public class FlightServer {
+  // Characters encoded into each chunk of a response
+  private static final int CHUNK_CHARS = 8192;
+
+  private final int port;
+  private final int maxLineChars;
+  private final ExecutorService sessions;
+
+  public FlightServer(int port) throws IOException {
+    this(port, DBConnUtils.getIntProperty("flightapp.server.max_line_chars", 4096));
+  }
+
+  public FlightServer(int port, int maxLineChars) {
+    if (maxLineChars < 1) {
+      throw new IllegalArgumentException("Command lines must allow at least one character");
+    }
+    this.port = port;
+    this.maxLineChars = maxLineChars;
+    this.sessions = newSessionExecutor();
+  }
+
+  /**
+   * Accepts client connections until the process is stopped
+   */
+  public void serve() throws IOException {
+    try (ServerSocket server = new ServerSocket(port)) {
+      System.out.println("Flights server listening on port " + server.getLocalPort());
+      while (true) {
+        Socket client = server.accept();
+        sessions.execute(() -> runSession(client, maxLineChars));
+      }
+    } finally {
+      sessions.shutdownNow();
+    }
+  }
+
+  private static void runSession(Socket client, int maxLineChars) {
+    try (Socket socket = client;
+         CommandReader in = new CommandReader(
+             new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8),
+             maxLineChars);
+         FrameWriter out = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()),
+                                           CHUNK_CHARS)) {
+      QueryAbstract q = new Query();
+      try {
+        CommandTokenizer tokens = new CommandTokenizer();
+        String command;
+        while ((command = in.readLine()) != null) {
+          boolean more = FlightService.execute(q, tokens, command, out);
+          out.endFrame();
+          if (!more) {
+            out.flush();
+            break;
+          }
+          if (!in.ready()) {
+            out.flush();
+          }
+        }
+        if (in.tooLong()) {
+          out.write("Error: command longer than " + maxLineChars + " characters\n");
+          out.endFrame();
+          out.flush();
+        }
+      } finally {
+        q.closeConnection();
+      }
+    } catch (IOException | SQLException | RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Returns a virtual-thread-per-task executor if this JVM supports it, or a cached thread pool
+   * otherwise.
+   */
+  private static ExecutorService newSessionExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                                              .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /**
+   * Reads command lines like BufferedReader.readLine, but gives up on a line longer than a
+   * limit rather than buffering all of it
+   */
+  static class CommandReader implements AutoCloseable {
+    private final Reader in;
+    private final int maxChars;
+    private final char[] buf = new char[8192];
+    private final StringBuilder line = new StringBuilder();
+    private int pos;
+    private int end;
+    private boolean skipLF; // the last line ended with '\r', so a '\n' next is part of it
+    private boolean tooLong;
+
+    CommandReader(Reader in, int maxChars) {
+      this.in = in;
+      this.maxChars = maxChars;
+    }
+
+    /**
+     * Returns the next line, without its '\n', '\r' or "\r\n", or null at the end of the
+     * stream or once a line was longer than the limit
+     */
+    String readLine() throws IOException {
+      if (tooLong) {
+        return null;
+      }
+      line.setLength(0);
+      while (true) {
+        if (pos == end) {
+          end = in.read(buf, 0, buf.length);
+          pos = 0;
+          if (end <= 0) {
+            end = 0;
+            return line.length() > 0 ? line.toString() : null;
+          }
+        }
+        if (skipLF) {
+          skipLF = false;
+          if (buf[pos] == '\n') {
+            pos++;
+            continue;
+          }
+        }
+        int start = pos;
+        while (pos < end && buf[pos] != '\n' && buf[pos] != '\r') {
+          pos++;
+        }
+        if (line.length() + (pos - start) > maxChars) {
+          tooLong = true;
+          return null;
+        }
+        line.append(buf, start, pos - start);
+        if (pos < end) {
+          skipLF = buf[pos++] == '\r';
+          return line.toString();
+        }
+      }
+    }
+
+    /**
+     * Whether reading stopped at a line longer than the limit
+     */
+    boolean tooLong() {
+      return tooLong;
+    }
+
+    /**
+     * Whether another line can be read, at least in part, without blocking
+     */
+    boolean ready() throws IOException {
+      if (skipLF && pos < end && buf[pos] == '\n') {
+        skipLF = false;
+        pos++;
+      }
+      return pos < end || in.ready();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes responses to a stream as frames of length-prefixed chunks, encoding a chunk at a
+   * time.  Call {@link #endFrame()} after each response.
+   */
+  static class FrameWriter extends Writer {
+    private final OutputStream out;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final char[] chars;
+    private final ByteBuffer bytes;
+    private int count;
+
+    /**
+     * @param chunkChars the most characters in a chunk, at least 2
+     */
+    FrameWriter(OutputStream out, int chunkChars) {
+      if (chunkChars < 2) {
+        throw new IllegalArgumentException("Chunks must hold at least 2 characters");
+      }
+      this.out = out;
+      this.chars = new char[chunkChars];
+      this.bytes = ByteBuffer.allocate((int) Math.ceil(chunkChars * encoder.maxBytesPerChar()));
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      if (count == chars.length) {
+        writeChunk(false);
+      }
+      chars[count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == chars.length) {
+          writeChunk(false);
+        }
+        int n = Math.min(len, chars.length - count);
+        System.arraycopy(cbuf, off, chars, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == chars.length) {
+          writeChunk(false);
+        }
+        int n = Math.min(len, chars.length - count);
+        str.getChars(off, off + n, chars, count);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    // Copies straight from the sequence, rather than through a String as Writer does
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        write(csq.charAt(i));
+      }
+      return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+      return csq == null ? append("null", 0, 4) : append(csq, 0, csq.length());
+    }
+
+    /**
+     * Sends the rest of the current response and the empty chunk that ends its frame
+     */
+    void endFrame() throws IOException {
+      if (count > 0) {
+        writeChunk(true);
+      }
+      out.write('0');
+      out.write('\n');
+    }
+
+    // Encodes and sends the buffered characters, except that unless last is set, a trailing high
+    // surrogate is kept for the next chunk so that no character is split between two
+    private void writeChunk(boolean last) throws IOException {
+      int n = count;
+      if (!last && Character.isHighSurrogate(chars[n - 1])) {
+        n--;
+      }
+      if (n == 0) {
+        return;
+      }
+      encoder.reset();
+      bytes.clear();
+      encoder.encode(CharBuffer.wrap(chars, 0, n), bytes, true);
+      encoder.flush(bytes);
+      out.write(Integer.toString(bytes.position()).getBytes(StandardCharsets.US_ASCII));
+      out.write('\n');
+      out.write(bytes.array(), 0, bytes.position());
+      System.arraycopy(chars, n, chars, 0, count - n);
+      count -= n;
+    }
+
+    /**
+     * Sends what has been written so far, without ending the frame
+     */
+    @Override
+    public void flush() throws IOException {
+      if (count > 0) {
+        writeChunk(false);
+      }
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -1,116 +1,182 @@
 package flightapp;
 
 import java.io.*;
-import java.util.*;
-import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
+  private static final int DEFAULT_SERVER_PORT = 9000;
 
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(QueryAbstract q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
+    return execute(q, new CommandTokenizer(), command);
+  }
 
-    // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
+  /**
+   * Execute the specified command on the database query connection, reusing the session's
+   * tokenizer
+   */
+  public static String execute(QueryAbstract q, CommandTokenizer tokens, String command) {
+    StringBuilder response = new StringBuilder();
+    try {
+      execute(q, tokens, command, response);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // not from a StringBuilder
     }
+    return response.toString();
+  }
 
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.login(username, password);
-      } else {
-        response = "Error: Please provide a username and password";
-      }
-    }
+  /**
+   * Execute the specified command on the database query connection, writing the response to
+   * {@code out}.  Searches and reservations are written as they are listed, rather than
+   * returned whole.  Returns false if the command ended the session.
+   */
+  public static boolean execute(QueryAbstract q, CommandTokenizer tokens, String command,
+                                Appendable out) throws IOException {
+    int numTokens = tokens.tokenize(command.trim());
+    String response = null; // unless the command wrote to out itself
 
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.createCustomer(username, password, initAmount);
-      } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
-      }
+    // empty input
+    if (numTokens == 0) {
+      out.append("Please enter a command");
+      return true;
     }
 
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
+    switch (tokens.kind()) {
+      case LOGIN:
+        if (numTokens == 3) {
+          String username = tokens.string(1);
+          String password = tokens.string(2);
+          response = q.login(username, password);
+        } else {
+          response = "Error: Please provide a username and password";
         }
-      } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-      }
-    }
+        break;
 
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.book(itinerary_id);
-      } else {
-        response = "Error: Please provide an itinerary_id";
-      }
-    }
+      case CREATE:
+        if (numTokens == 4) {
+          String username = tokens.string(1);
+          String password = tokens.string(2);
+          int initAmount = tokens.intValue(3);
+          response = q.createCustomer(username, password, initAmount);
+        } else {
+          response = "Error: Please provide a username, password, and initial amount in the account";
+        }
+        break;
 
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.reservations();
-    }
+      case SEARCH:
+        if (numTokens == 6 || numTokens == 7) {
+          String originCity = tokens.string(1);
+          String destinationCity = tokens.string(2);
+          boolean direct = tokens.tokenEquals(3, "1");
+          try {
+            int day = tokens.intValue(4);
+            int count = tokens.intValue(5);
+            int maxStops = numTokens == 7 ? tokens.intValue(6) : 1;
+            q.search(originCity, destinationCity, direct, day, count, maxStops, out);
+          } catch (NumberFormatException e) {
+            response = "Failed to parse integer";
+          }
+        } else {
+          response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries> [<max stops>]";
+        }
+        break;
 
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.pay(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
-    }
+      case BOOK:
+        if (numTokens == 2) {
+          int itinerary_id = tokens.intValue(1);
+          response = q.book(itinerary_id);
+        } else {
+          response = "Error: Please provide an itinerary_id";
+        }
+        break;
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
-    }
+      case RESERVATIONS:
+        if (numTokens == 1) {
+          q.reservations(out);
+        } else if (numTokens == 3) {
+          try {
+            int after = tokens.intValue(1);
+            int limit = tokens.intValue(2);
+            q.reservations(after, limit, out);
+          } catch (NumberFormatException e) {
+            response = "Failed to parse integer";
+          }
+        } else {
+          response = "Error: Please provide both <after reservation id> <limit>, or neither";
+        }
+        break;
+
+      case PAY:
+        if (numTokens == 2) {
+          int reservation_id = tokens.intValue(1);
+          response = q.pay(reservation_id);
+        } else {
+          response = "Error: Please provide a reservation_id";
+        }
+        break;
+
+      case QUIT:
+        response = "Goodbye\n";
+        break;
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+      // unknown command
+      default:
+        response = "Error: unrecognized command '" + tokens.string(0) + "'";
     }
 
-    return response;
+    if (response != null) {
+      out.append(response);
+    }
+    return tokens.kind() != CommandTokenizer.Kind.QUIT;
   }
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL.  With "-server [port]", serves sessions over TCP instead.
+   * With "-pipeline [file]", runs the commands in the file (or on stdin) as one
+   * session, printing only their responses.
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
-    QueryAbstract q = new Query();
-    menu(q);
+    if (args.length > 0 && args[0].equals("-server")) {
+      int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SERVER_PORT;
+      new FlightServer(port).serve();
+      return;
+    }
+
+    Query q = new Query();
+    if (args.length > 0 && args[0].equals("-pipeline")) {
+      pipeline(q, args.length > 1 ? args[1] : null);
+    } else {
+      menu(q);
+    }
     q.closeConnection();
   }
 
+  /**
+   * Runs a file of commands (or stdin, if {@code file} is null) through a
+   * {@link CommandPipeline}, then reports the throughput on stderr
+   */
+  private static void pipeline(Query q, String file) throws IOException {
+    Reader source = file == null ? new InputStreamReader(System.in) : new FileReader(file);
+    CommandPipeline pipeline = new CommandPipeline(q);
+    long start = System.nanoTime();
+    try (BufferedReader in = new BufferedReader(source);
+         BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out))) {
+      pipeline.run(in, out);
+    } finally {
+      pipeline.shutdown();
+    }
+    double secs = (System.nanoTime() - start) / 1e9;
+    System.err.printf("Ran %d commands (%d searches prefetched) in %.3f s: %.1f commands/s%n",
+                      pipeline.commands(), pipeline.prefetched(), secs,
+                      pipeline.commands() / Math.max(secs, 1e-9));
+  }
+
   /**
    * REPL (Read-Execute-Print-Loop) for Flights application for the specified
    * application-to-database connection
@@ -119,45 +185,33 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(QueryAbstract q) throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+    CommandTokenizer tokens = new CommandTokenizer();
     while (true) {
       // print the command options
       System.out.println();
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [<max stops>]");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
-      System.out.println("> reservations");
+      System.out.println("> reservations [<after reservation id> <limit>]");
       System.out.println("> quit");
 
-      // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+      // read an input command from the REPL; end of input quits
       System.out.print("> ");
       String command = r.readLine();
+      if (command == null) {
+        command = "quit";
+      }
 
       // execute the given input command
-      String response = execute(q, command);
+      String response = execute(q, tokens, command);
       System.out.print(response);
       if (response.equals("Goodbye\n")) {
         break;
       }
     }
   }
-
-  /**
-   * Tokenize a string into a string array
-   */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
-  }
 }
@@ -0,0 +1,297 @@
+package flightapp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A read-only, column-oriented copy of the non-canceled rows of the Flights table.
+ *
+ * Every column is stored as one int per row in a direct (off-heap) buffer, so caching hundreds
+ * of thousands of flights costs the garbage collector a handful of objects rather than one
+ * object per row.  The string columns (carrier_id, flight_num, origin_city and dest_city) are
+ * dictionary-encoded: rows hold an int code, and each distinct string is kept once.
+ *
+ * Rows are ordered by fid, so {@link #rowOf(int)} is a binary search.  Rows are printed by
+ * {@link #appendFlight}, in {@code Query.Flight} format, without building a Flight object.
+ */
+public class FlightStore {
+  private static final String LOAD_FLIGHTS_SQL = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
+                                               + "FROM Flights WHERE canceled = 0 ORDER BY fid ASC";
+
+  private final int size;
+
+  // Numeric columns
+  private final IntBuffer fids;
+  private final IntBuffer days;
+  private final IntBuffer times;
+  private final IntBuffer capacities;
+  private final IntBuffer prices;
+
+  // Dictionary-encoded columns
+  private final IntBuffer carriers;
+  private final IntBuffer flightNums;
+  private final IntBuffer origins;
+  private final IntBuffer dests;
+
+  private final String[] carrierNames;
+  private final String[] flightNumNames;
+  private final String[] cityNames;
+
+  // Case-insensitive key of each city code; cities differing only by case share a key
+  private final int[] cityKeys;
+  private final Map<String, Integer> cityKeyByName;
+
+  private FlightStore(ColumnBuilder b) {
+    size = b.size;
+
+    fids = toDirect(b.fids, size);
+    days = toDirect(b.days, size);
+    times = toDirect(b.times, size);
+    capacities = toDirect(b.capacities, size);
+    prices = toDirect(b.prices, size);
+
+    carriers = toDirect(b.carriers, size);
+    flightNums = toDirect(b.flightNums, size);
+    origins = toDirect(b.origins, size);
+    dests = toDirect(b.dests, size);
+
+    carrierNames = b.carrierDict.toArray();
+    flightNumNames = b.flightNumDict.toArray();
+    cityNames = b.cityDict.toArray();
+
+    cityKeys = new int[cityNames.length];
+    cityKeyByName = new HashMap<>();
+    for (int code = 0; code < cityNames.length; code++) {
+      Integer key = cityKeyByName.computeIfAbsent(normalize(cityNames[code]),
+                                                  c -> cityKeyByName.size());
+      cityKeys[code] = key;
+    }
+  }
+
+  /**
+   * Reads every non-canceled flight through the given connection.
+   */
+  static FlightStore load(Connection conn) throws SQLException {
+    ColumnBuilder b = new ColumnBuilder();
+    try (Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(LOAD_FLIGHTS_SQL)) {
+      while (rs.next()) {
+        b.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"),
+              rs.getString("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"),
+              rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
+      }
+    }
+    return new FlightStore(b);
+  }
+
+  /**
+   * Builds a store from columns holding one entry per row, without a database.  Rows must be
+   * in ascending fid order, as {@link #load} reads them.
+   */
+  static FlightStore of(int[] fids, int[] days, String[] carriers, String[] flightNums,
+                        String[] origins, String[] dests, int[] times, int[] capacities,
+                        int[] prices) {
+    ColumnBuilder b = new ColumnBuilder();
+    for (int i = 0; i < fids.length; i++) {
+      b.add(fids[i], days[i], carriers[i], flightNums[i], origins[i], dests[i], times[i],
+            capacities[i], prices[i]);
+    }
+    return new FlightStore(b);
+  }
+
+  private static IntBuffer toDirect(int[] column, int size) {
+    IntBuffer buffer = ByteBuffer.allocateDirect(Math.max(size, 1) * Integer.BYTES)
+                                 .order(ByteOrder.nativeOrder())
+                                 .asIntBuffer();
+    buffer.put(column, 0, size);
+    buffer.clear();
+    return buffer;
+  }
+
+  private static String normalize(String city) {
+    return city.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Number of rows in the store
+   */
+  public int size() {
+    return size;
+  }
+
+  public int fid(int row) {
+    return fids.get(row);
+  }
+
+  public int day(int row) {
+    return days.get(row);
+  }
+
+  public int time(int row) {
+    return times.get(row);
+  }
+
+  public int capacity(int row) {
+    return capacities.get(row);
+  }
+
+  public int price(int row) {
+    return prices.get(row);
+  }
+
+  public String carrier(int row) {
+    return carrierNames[carriers.get(row)];
+  }
+
+  public String flightNum(int row) {
+    return flightNumNames[flightNums.get(row)];
+  }
+
+  public String originCity(int row) {
+    return cityNames[origins.get(row)];
+  }
+
+  public String destCity(int row) {
+    return cityNames[dests.get(row)];
+  }
+
+  /**
+   * Case-insensitive key of the row's origin city, comparable with {@link #cityKey(String)}
+   */
+  public int originKey(int row) {
+    return cityKeys[origins.get(row)];
+  }
+
+  /**
+   * Case-insensitive key of the row's destination city
+   */
+  public int destKey(int row) {
+    return cityKeys[dests.get(row)];
+  }
+
+  /**
+   * Number of distinct case-insensitive city keys
+   */
+  public int cityKeyCount() {
+    return cityKeyByName.size();
+  }
+
+  /**
+   * Returns the case-insensitive key of the city, or -1 if no flight touches it
+   */
+  public int cityKey(String city) {
+    if (city == null) {
+      return -1;
+    }
+    Integer key = cityKeyByName.get(normalize(city));
+    return key == null ? -1 : key;
+  }
+
+  /**
+   * Returns the row holding the given fid, or -1 if there is none
+   */
+  public int rowOf(int fid) {
+    int lo = 0;
+    int hi = size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int midFid = fids.get(mid);
+      if (midFid < fid) {
+        lo = mid + 1;
+      } else if (midFid > fid) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Appends the row in {@code Query.Flight} format, without materializing it
+   */
+  public StringBuilder appendFlight(StringBuilder out, int row) {
+    return Query.Flight.append(out, fid(row), day(row), carrier(row), flightNum(row),
+                               originCity(row), destCity(row), time(row), capacity(row),
+                               price(row));
+  }
+
+  /**
+   * Accumulates rows on the heap while the table is being read
+   */
+  private static class ColumnBuilder {
+    int size = 0;
+    int[] fids = new int[1024];
+    int[] days = new int[1024];
+    int[] times = new int[1024];
+    int[] capacities = new int[1024];
+    int[] prices = new int[1024];
+    int[] carriers = new int[1024];
+    int[] flightNums = new int[1024];
+    int[] origins = new int[1024];
+    int[] dests = new int[1024];
+
+    final StringDictionary carrierDict = new StringDictionary();
+    final StringDictionary flightNumDict = new StringDictionary();
+    final StringDictionary cityDict = new StringDictionary();
+
+    void add(int fid, int day, String carrier, String flightNum, String origin, String dest,
+             int time, int capacity, int price) {
+      if (size == fids.length) {
+        int n = size * 2;
+        fids = Arrays.copyOf(fids, n);
+        days = Arrays.copyOf(days, n);
+        times = Arrays.copyOf(times, n);
+        capacities = Arrays.copyOf(capacities, n);
+        prices = Arrays.copyOf(prices, n);
+        carriers = Arrays.copyOf(carriers, n);
+        flightNums = Arrays.copyOf(flightNums, n);
+        origins = Arrays.copyOf(origins, n);
+        dests = Arrays.copyOf(dests, n);
+      }
+      fids[size] = fid;
+      days[size] = day;
+      times[size] = time;
+      capacities[size] = capacity;
+      prices[size] = price;
+      carriers[size] = carrierDict.encode(carrier);
+      flightNums[size] = flightNumDict.encode(flightNum);
+      origins[size] = cityDict.encode(origin);
+      dests[size] = cityDict.encode(dest);
+      size++;
+    }
+  }
+
+  /**
+   * Assigns consecutive int codes to distinct strings
+   */
+  private static class StringDictionary {
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    int encode(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        codes.put(value, code);
+        values.add(value);
+      }
+      return code;
+    }
+
+    String[] toArray() {
+      return values.toArray(new String[0]);
+    }
+  }
+}
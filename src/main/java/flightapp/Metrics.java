@@ -0,0 +1,258 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide latency and outcome counters for the commands in {@link QueryAbstract} and the
+ * prepared statements they run, shared by every session.
+ *
+ * Latencies go into fixed log-linear histograms (16 buckets per power of two, so percentiles
+ * are within about 6%), and recording one is a few atomic adds: nothing is allocated on the
+ * command path.  Retry and deadlock counts come from {@link RetryPolicy}.
+ *
+ * The totals since startup can be printed to stderr every so often.  Settings are read from
+ * dbconn.properties (or java system properties):
+ *   flightapp.metrics.log_interval_secs   seconds between reports, 0 for none (default 0)
+ */
+public class Metrics {
+  private static final Map<String, Command> COMMANDS = new LinkedHashMap<>();
+  private static final Map<String, Histogram> STATEMENTS = new LinkedHashMap<>();
+  private static ScheduledExecutorService reporter;
+
+  /**
+   * Returns the process-wide counters for the named command, creating them on first use.  A
+   * command succeeded if its response starts with {@code okPrefix}; with a null prefix, any
+   * response counts.
+   */
+  public static synchronized Command command(String name, String okPrefix) {
+    return COMMANDS.computeIfAbsent(name, n -> new Command(n, okPrefix));
+  }
+
+  /**
+   * Returns the process-wide execution-time histogram for the named statement
+   */
+  public static synchronized Histogram statement(String name) {
+    return STATEMENTS.computeIfAbsent(name, n -> new Histogram());
+  }
+
+  /**
+   * Starts printing {@link #report()} to stderr at the configured interval, unless it already
+   * started or is turned off
+   */
+  public static synchronized void startReporter() throws IOException {
+    int intervalSecs = DBConnUtils.getIntProperty("flightapp.metrics.log_interval_secs", 0);
+    if (reporter != null || intervalSecs <= 0) {
+      return;
+    }
+    reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "metrics-reporter");
+      t.setDaemon(true);
+      return t;
+    });
+    reporter.scheduleAtFixedRate(() -> System.err.print(report()), intervalSecs, intervalSecs,
+                                 TimeUnit.SECONDS);
+  }
+
+  /**
+   * One line per command, statement and retry policy that has been used, with totals since
+   * startup.  Times are in milliseconds.
+   */
+  public static String report() {
+    List<Command> commands;
+    List<Map.Entry<String, Histogram>> statements;
+    synchronized (Metrics.class) {
+      commands = new ArrayList<>(COMMANDS.values());
+      statements = new ArrayList<>(STATEMENTS.entrySet());
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (Command c : commands) {
+      if (c.latency.count() > 0) {
+        sb.append("metrics command=").append(c.name);
+        c.latency.appendSummary(sb);
+        sb.append(" ok=").append(c.ok.sum())
+          .append(" failed=").append(c.failed.sum())
+          .append(" errors=").append(c.errors.sum()).append('\n');
+      }
+    }
+    for (Map.Entry<String, Histogram> e : statements) {
+      if (e.getValue().count() > 0) {
+        sb.append("metrics statement=").append(e.getKey());
+        e.getValue().appendSummary(sb);
+        sb.append('\n');
+      }
+    }
+    for (RetryPolicy policy : RetryPolicy.all()) {
+      sb.append("metrics retry ").append(policy).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Latency and outcome counts of one command
+   */
+  public static class Command {
+    private final String name;
+    private final String okPrefix;
+    private final Histogram latency = new Histogram();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private Command(String name, String okPrefix) {
+      this.name = name;
+      this.okPrefix = okPrefix;
+    }
+
+    /**
+     * Records a command that took {@code nanos} and returned {@code response}
+     */
+    public void completed(long nanos, String response) {
+      completed(nanos, okPrefix == null || (response != null && response.startsWith(okPrefix)));
+    }
+
+    /**
+     * Records a command that took {@code nanos} and wrote its response elsewhere, and whether
+     * it succeeded
+     */
+    public void completed(long nanos, boolean succeeded) {
+      latency.record(nanos);
+      if (succeeded) {
+        ok.increment();
+      } else {
+        failed.increment();
+      }
+    }
+
+    /**
+     * Records a command that took {@code nanos} and then threw
+     */
+    public void threw(long nanos) {
+      latency.record(nanos);
+      errors.increment();
+    }
+
+    public Histogram latency() {
+      return latency;
+    }
+
+    public long ok() {
+      return ok.sum();
+    }
+
+    public long failed() {
+      return failed.sum();
+    }
+
+    public long errors() {
+      return errors.sum();
+    }
+  }
+
+  /**
+   * A histogram of durations, kept in microseconds.  Values below 16us get a bucket each;
+   * above that, each power of two is split into 16 equal buckets.
+   */
+  public static class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Enough powers of two for about 12 days, longer durations share the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+      long micros = Math.max(0, nanos / 1000);
+      counts.incrementAndGet(bucketOf(micros));
+      count.increment();
+      totalMicros.add(micros);
+      maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    static int bucketOf(long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      if (exponent > MAX_EXPONENT) {
+        return BUCKETS - 1;
+      }
+      int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The largest value that falls in the bucket
+     */
+    static long highestIn(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      long width = 1L << (exponent - SUB_BITS);
+      return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+    public long count() {
+      return count.sum();
+    }
+
+    public long maxMicros() {
+      return maxMicros.get();
+    }
+
+    public long meanMicros() {
+      long n = count.sum();
+      return n == 0 ? 0 : totalMicros.sum() / n;
+    }
+
+    /**
+     * Returns an upper bound on the given percentile (0 to 100), in microseconds
+     */
+    public long percentileMicros(double percentile) {
+      long n = count.sum();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank) {
+          return Math.min(highestIn(i), maxMicros.get());
+        }
+      }
+      return maxMicros.get();
+    }
+
+    void appendSummary(StringBuilder sb) {
+      sb.append(" n=").append(count())
+        .append(" mean=").append(millis(meanMicros()))
+        .append(" p50=").append(millis(percentileMicros(50)))
+        .append(" p99=").append(millis(percentileMicros(99)))
+        .append(" p999=").append(millis(percentileMicros(99.9)))
+        .append(" max=").append(millis(maxMicros()));
+    }
+
+    private static String millis(long micros) {
+      return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+  }
+}
@@ -1,13 +1,18 @@
 package flightapp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -15,62 +20,109 @@ import javax.crypto.spec.PBEKeySpec;
 
 /**
  * A collection of utility methods to help with managing passwords
+ *
+ * Hashing is CPU-heavy, so it runs on a small dedicated pool of threads rather than on the
+ * caller's thread, and a burst of logins waits in a bounded queue instead of taking over every
+ * core.  When the queue is full, hashing fails fast with an IllegalStateException.
+ *
+ * Settings are read from dbconn.properties (or java system properties):
+ *   flightapp.password.iterations   PBKDF2 iterations for new hashes (default 65536)
+ *   flightapp.password.threads      hashing threads (default half the cores)
+ *   flightapp.password.queue        hashes allowed to wait for a thread (default 64)
+ *
+ * The iteration count is stored with each hash, so changing it only affects new hashes.
  */
 public class PasswordUtils {
-  
+
   /**
    * Generates a cryptographically-secure salted password.
    */
   public static byte[] saltAndHashPassword(String password) {
     byte[] salt = generateSalt();
-    byte[] saltedHash = hashWithSalt(password, salt);
-
-    // TODO: combine the salt and the salted hash into a single byte array that
-    // can be written to the database
-    // Combine the salt and the salted hash into a single byte array
-    byte[] saltAndHash = new byte[SALT_LENGTH_BYTES + saltedHash.length];
-    System.arraycopy(salt, 0, saltAndHash, 0, SALT_LENGTH_BYTES);
-    System.arraycopy(saltedHash, 0, saltAndHash, SALT_LENGTH_BYTES, saltedHash.length);
+    int iterations = HASH_STRENGTH;
+    byte[] saltedHash = hashWithSalt(password, salt, iterations);
 
-    return saltAndHash;
+    // Combine the format version, the cost, the salt and the salted hash into a single byte
+    // array that can be written to the database
+    return ByteBuffer.allocate(HEADER_LENGTH_BYTES + SALT_LENGTH_BYTES + saltedHash.length)
+                     .put(FORMAT_VERSION)
+                     .putInt(iterations)
+                     .put(salt)
+                     .put(saltedHash)
+                     .array();
   }
 
   /**
    * Verifies whether the plaintext password can be hashed to provided salted hashed password.
    */
   public static boolean plaintextMatchesSaltedHash(String plaintext, byte[] saltedHashed) {
-    // TODO: extract the salt from the byte array (ie, undo the logic you implemented in 
-    // saltAndHashPassword), then use it to check whether the user-provided plaintext
-    // password matches the password hash.
-    byte[] salt = new byte[SALT_LENGTH_BYTES];
-    byte[] storedHash = new byte[saltedHashed.length - SALT_LENGTH_BYTES];
+    ByteBuffer stored = ByteBuffer.wrap(saltedHashed);
+    int iterations;
+
+    // Hashes written before the format was versioned are just the salt and the hash
+    if (saltedHashed.length == LEGACY_LENGTH_BYTES) {
+      iterations = LEGACY_HASH_STRENGTH;
+    } else if (saltedHashed.length > HEADER_LENGTH_BYTES + SALT_LENGTH_BYTES
+               && stored.get() == FORMAT_VERSION) {
+      iterations = stored.getInt();
+      if (iterations <= 0) {
+        return false;
+      }
+    } else {
+      return false;
+    }
 
     // Extract the salt and the stored hash from the combined array
-    System.arraycopy(saltedHashed, 0, salt, 0, SALT_LENGTH_BYTES);
-    System.arraycopy(saltedHashed, SALT_LENGTH_BYTES, storedHash, 0, storedHash.length);
+    byte[] salt = new byte[SALT_LENGTH_BYTES];
+    byte[] storedHash = new byte[stored.remaining() - SALT_LENGTH_BYTES];
+    stored.get(salt);
+    stored.get(storedHash);
 
-    // Hash the plaintext password with the extracted salt
-    byte[] newHash = hashWithSalt(plaintext, salt);
+    // Hash the plaintext password with the extracted salt and cost
+    byte[] newHash = hashWithSalt(plaintext, salt, iterations);
 
-    // Compare the newly generated hash with the stored hash
-    return java.util.Arrays.equals(newHash, storedHash);
+    // Compare the newly generated hash with the stored hash, in constant time
+    return MessageDigest.isEqual(newHash, storedHash);
   }
-  
+
   // Password hashing parameter constants.
-  private static final int HASH_STRENGTH = 65536;
+  private static final int LEGACY_HASH_STRENGTH = 65536;
+  private static final int HASH_STRENGTH =
+      intSetting("flightapp.password.iterations", LEGACY_HASH_STRENGTH);
   private static final int KEY_LENGTH_BYTES = 128;
   private static final int SALT_LENGTH_BYTES = 16;
 
+  // Stored hash layout: FORMAT_VERSION, iterations (4 bytes), salt, hash.  Unversioned hashes
+  // are exactly LEGACY_LENGTH_BYTES long, which a versioned one can never be.
+  private static final byte FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH_BYTES = 1 + Integer.BYTES;
+  private static final int LEGACY_LENGTH_BYTES = SALT_LENGTH_BYTES + KEY_LENGTH_BYTES;
+
+  // Hashing threads and their bounded queue
+  private static final ThreadPoolExecutor HASHERS = newHashingExecutor(
+      intSetting("flightapp.password.threads",
+                 Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+      intSetting("flightapp.password.queue", 64));
+
+  // SecretKeyFactory lookups are slow; each hashing thread keeps its own instance
+  private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  });
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
   /**
    * Generate a small bit of randomness to serve as a password "salt"
    */
   static byte[] generateSalt() {
-    // TODO: implement this.
     byte[] salt = new byte[SALT_LENGTH_BYTES];
-    
+
     // Generate randomness
-    SecureRandom random = new SecureRandom();
-    random.nextBytes(salt);
+    RANDOM.nextBytes(salt);
 
     return salt;
   }
@@ -80,21 +132,59 @@ public class PasswordUtils {
    * The resultant byte array will be KEY_LENGTH_BYTES bytes long.
    */
   static byte[] hashWithSalt(String password, byte[] salt)
+    throws IllegalStateException {
+    return hashWithSalt(password, salt, HASH_STRENGTH);
+  }
+
+  /**
+   * Hashes with the given number of iterations, on the hashing threads.  Throws
+   * IllegalStateException if too many hashes are already waiting.
+   */
+  static byte[] hashWithSalt(String password, byte[] salt, int iterations)
     throws IllegalStateException {
     // Specify the hash parameters, including the salt
     KeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
-                                  HASH_STRENGTH, KEY_LENGTH_BYTES * 8 /* length in bits */);
+                                  iterations, KEY_LENGTH_BYTES * 8 /* length in bits */);
 
     // Hash the whole thing
-    SecretKeyFactory factory = null;
-    byte[] hash = null; 
+    Future<byte[]> hash;
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-      return hash;
-    } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-      throw new IllegalStateException();
+      hash = HASHERS.submit(() -> FACTORY.get().generateSecret(spec).getEncoded());
+    } catch (RejectedExecutionException ex) {
+      throw new IllegalStateException("Too many passwords waiting to be hashed", ex);
+    }
+
+    try {
+      return hash.get();
+    } catch (InterruptedException ex) {
+      hash.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof InvalidKeySpecException) {
+        throw new IllegalStateException(ex.getCause());
+      }
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  // Without dbconn.properties (eg in unit tests), only system properties and defaults apply
+  private static int intSetting(String name, int defaultValue) {
+    try {
+      return DBConnUtils.getIntProperty(name, defaultValue);
+    } catch (IOException ex) {
+      return Integer.getInteger(name, defaultValue);
     }
   }
 
+  private static ThreadPoolExecutor newHashingExecutor(int threads, int queueSize) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+          Thread t = new Thread(r, "password-hasher");
+          t.setDaemon(true);
+          return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 }
@@ -0,0 +1,109 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A physical database connection owned by a {@link ConnectionPool}, together with the prepared
+ * statements created on it.  Closing it hands it back to the pool rather than closing the
+ * physical connection.
+ */
+public class PooledConnection implements AutoCloseable {
+  private final ConnectionPool pool;
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+  private final Map<PreparedStatement, Metrics.Histogram> timers = new IdentityHashMap<>();
+  private long lastReleasedMillis;
+  private boolean borrowed;
+
+  PooledConnection(ConnectionPool pool, Connection conn) {
+    this.pool = pool;
+    this.conn = conn;
+    this.lastReleasedMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * The underlying connection.  It must not be closed directly.
+   */
+  public Connection connection() {
+    return conn;
+  }
+
+  /**
+   * Returns the prepared statement for the given SQL, preparing it the first time this
+   * connection sees it.
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    return prepare(sql, sql);
+  }
+
+  /**
+   * Like {@link #prepare(String)}, recording the statement's execution times under
+   * {@code name} in {@link Metrics}
+   */
+  public PreparedStatement prepare(String name, String sql) throws SQLException {
+    PreparedStatement stmt = statements.get(sql);
+    if (stmt == null) {
+      stmt = conn.prepareStatement(sql);
+      statements.put(sql, stmt);
+      timers.put(stmt, Metrics.statement(name));
+    } else {
+      stmt.clearParameters();
+    }
+    return stmt;
+  }
+
+  /**
+   * The histogram for a statement returned by {@link #prepare}, or null for any other
+   */
+  Metrics.Histogram timer(PreparedStatement stmt) {
+    return timers.get(stmt);
+  }
+
+  /**
+   * Returns this connection to its pool
+   */
+  @Override
+  public void close() {
+    if (borrowed) {
+      borrowed = false;
+      pool.release(this);
+    }
+  }
+
+  long lastReleasedMillis() {
+    return lastReleasedMillis;
+  }
+
+  void markBorrowed() {
+    borrowed = true;
+  }
+
+  void markReleased() {
+    lastReleasedMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Closes the prepared statements and the physical connection
+   */
+  void closePhysical() {
+    for (PreparedStatement stmt : statements.values()) {
+      try {
+        stmt.close();
+      } catch (SQLException e) {
+        // The connection is being discarded anyway
+      }
+    }
+    statements.clear();
+    timers.clear();
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+}
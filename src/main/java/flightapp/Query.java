@@ -5,6 +5,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -32,100 +33,210 @@ public class Query extends QueryAbstract {
   private PreparedStatement flightCapacityStmt;
 
   // Clear tables
+  private static final String CLEAR_LEGS = "DELETE FROM ReservationLegs_yangsam;";
+  private PreparedStatement clearLegs;
+
   private static final String CLEAR_RESERVE = "DELETE FROM Reservations_yangsam;";
   private PreparedStatement clearReserves;
 
   private static final String CLEAR_USERS = "DELETE FROM Users_yangsam;";
   private PreparedStatement clearUsers;
 
+  private static final String CLEAR_SEATS = "DELETE FROM SeatsBooked_yangsam;";
+  private PreparedStatement clearSeats;
+
+  private static final String CLEAR_RESERVATION_IDS = "UPDATE ReservationIds_yangsam SET last_id = 0;";
+  private PreparedStatement clearReservationIds;
+
   // Create user
   private static final String CREATE_USER_SQL = "INSERT INTO Users_yangsam (username, hashedPassword, balance) VALUES (?, ?, ?)";
   private PreparedStatement createUserStatement;
 
-  // Login user
-  private static final String CHECK_USER_SQL = "SELECT username FROM Users_yangsam WHERE LOWER(username) = LOWER(?)";
-  private PreparedStatement checkUserStatement;
-
-  private static final String GET_PASSWORD_SQL = "SELECT hashedPassword FROM Users_yangsam WHERE LOWER(username) = LOWER(?)";
-  private PreparedStatement getPasswordStatement;
-
-  // Search itinerary
-  private static final String SEARCH_SQL1 = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price "
-                                          + "FROM Flights "
-                                          + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 "
-                                          + "ORDER BY actual_time ASC, fid ASC";
-  private PreparedStatement searchStatement1;
-
-  private static final String SEARCH_SQL2 = "SELECT F1.fid AS fid1, F1.day_of_month AS day1, F1.carrier_id AS carrier1, F1.flight_num AS flight_num1, F1.origin_city AS origin1, "
-                                          + "F1.dest_city AS dest1, F1.actual_time AS time1, F1.capacity AS space1, F1.price AS price1, "
-                                          + "F2.fid AS fid2, F2.day_of_month AS day2, F2.carrier_id AS carrier2, F2.flight_num AS flight_num2, F2.origin_city AS origin2, "
-                                          + "F2.dest_city AS dest2, F2.actual_time AS time2, F2.capacity AS space2, F2.price AS price2 "
-                                          + "FROM Flights AS F1, Flights AS F2 "
-                                          + "WHERE F1.origin_city = ? AND F2.dest_city = ? AND F1.dest_city = F2.origin_city "
-                                          + "AND F1.day_of_month = ? AND F2.day_of_month = ? AND F1.canceled = 0 AND F2.canceled = 0 "
-                                          + "ORDER BY (F1.actual_time + F2.actual_time) ASC, F1.fid ASC, F2.fid ASC";
-  private PreparedStatement searchStatement2;
+  // Login user: a seek on the unique index over the lower-cased user name, which also
+  // covers the hash
+  private static final String FIND_USER_SQL = "SELECT username, hashedPassword FROM Users_yangsam WHERE username_key = LOWER(?)";
+  private PreparedStatement findUserStatement;
 
   // Booking
-  private static final String SAME_DAY_SQL = "SELECT * FROM Flights AS F INNER JOIN Reservations_yangsam R ON F.fid = R.fid1 "
-                                           + "OR F.fid = R.fid2 WHERE day_of_month = ? AND username = ?";
+  // Point lookup on the (username, day_of_month) index
+  private static final String SAME_DAY_SQL = "SELECT TOP 1 res_id FROM Reservations_yangsam WHERE username = ? AND day_of_month = ?";
   private PreparedStatement sameDayStatement;
 
-  private static final String CAPACITY_SQL = "SELECT F.capacity - COUNT(R.res_id) AS num_seats "
-                                           + "FROM Flights as F LEFT JOIN Reservations_yangsam R ON F.fid = R.fid1 OR F.fid = R.fid2 "
-                                           + "WHERE F.fid = ? GROUP BY F.capacity";
-  private PreparedStatement capacityStatement;
+  // Takes a seat on a flight if one is left: updates 1 row on success, 0 rows if it is full
+  private static final String TAKE_SEAT_SQL = "MERGE SeatsBooked_yangsam WITH (HOLDLOCK) AS S "
+                                            + "USING (SELECT ? AS fid, ? AS capacity) AS F ON S.fid = F.fid "
+                                            + "WHEN MATCHED AND S.booked < F.capacity THEN UPDATE SET booked = S.booked + 1 "
+                                            + "WHEN NOT MATCHED AND F.capacity > 0 THEN INSERT (fid, booked) VALUES (F.fid, 1);";
+  private PreparedStatement takeSeatStatement;
 
-  private static final String RESERVATION_SQL = "SELECT COUNT(*) AS reserve_num FROM Reservations_yangsam";
-  private PreparedStatement reservationStatement;
+  // Bumps the single-row ID counter in place; the row stays locked until commit, so IDs are
+  // handed out without gaps and a rolled-back booking gives its ID back
+  private static final String NEXT_RESERVATION_ID_SQL = "UPDATE ReservationIds_yangsam SET last_id = last_id + 1 "
+                                                      + "OUTPUT INSERTED.last_id AS reserve_num";
+  private PreparedStatement nextReservationIdStatement;
 
-  private static final String MAKE_RESERVATION_SQL = "INSERT INTO Reservations_yangsam (res_id, paid, username, fid1, fid2) VALUES (?, ?, ?, ?, ?)";
-  private PreparedStatement makeReservationStatement;
+  private static final String USER_VERSION_SQL = "SELECT version FROM Users_yangsam WHERE username = ?";
+  private PreparedStatement userVersionStatement;
 
-  // Pay
-  private static final String VERIFY_SQL = "SELECT R.paid, R.fid1, R.fid2, F1.price AS price1, F2.price AS price2 "
-                                         + "FROM Reservations_yangsam AS R "
-                                         + "LEFT JOIN Flights F1 ON R.fid1 = F1.fid "
-                                         + "LEFT JOIN Flights F2 ON R.fid2 = F2.fid "
-                                         + "WHERE R.res_id = ? AND R.username = ?";
-  private PreparedStatement verifyStatement;
+  private static final String BUMP_VERSION_SQL = "UPDATE Users_yangsam SET version = version + 1 WHERE username = ? AND version = ?";
+  private PreparedStatement bumpVersionStatement;
 
-  private static final String BALANCE_SQL = "SELECT balance FROM Users_yangsam WHERE username = ?";
-  private PreparedStatement balanceStatement;
+  private static final String MAKE_LEG_SQL = "INSERT INTO ReservationLegs_yangsam (res_id, leg, fid) VALUES (?, ?, ?)";
+  private PreparedStatement makeLegStatement;
 
-  private static final String UPDATE_BAL_SQL = "UPDATE Users_yangsam SET balance = balance - ? WHERE username = ?";
-  private PreparedStatement updateBalStatement;
+  private static final String MAKE_RESERVATION_SQL = "INSERT INTO Reservations_yangsam (res_id, paid, username, day_of_month, fid1, fid2) VALUES (?, ?, ?, ?, ?, ?)";
+  private PreparedStatement makeReservationStatement;
 
-  private static final String UPDATE_RESERVE_SQL = "UPDATE Reservations_yangsam SET paid = 1 WHERE res_id = ?";
-  private PreparedStatement updateReserveStatement;
+  // Books one or two flights on the same day in a single round trip, and returns a BOOK_*
+  // status and the new reservation ID.  Bumping the user's version first locks the user's
+  // row, so bookings by the same user wait for each other instead of racing.
+  private static final String BOOK_BATCH_SQL = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+                                             + "DECLARE @user VARCHAR(20) = ?, @day INT = ?, @fid1 INT = ?, @cap1 INT = ?, @fid2 INT = ?, @cap2 INT = ?; "
+                                             + "DECLARE @status INT = 0, @res_id INT = NULL; "
+                                             + "BEGIN TRY "
+                                             + "BEGIN TRAN; "
+                                             + "UPDATE Users_yangsam SET version = version + 1 WHERE username = @user; "
+                                             + "IF @@ROWCOUNT = 0 SET @status = 4; "
+                                             + "IF @status = 0 AND EXISTS (SELECT 1 FROM Reservations_yangsam WHERE username = @user AND day_of_month = @day) "
+                                             + "SET @status = 1; "
+                                             + "IF @status = 0 BEGIN "
+                                             + "MERGE SeatsBooked_yangsam WITH (HOLDLOCK) AS S USING (SELECT @fid1 AS fid) AS F ON S.fid = F.fid "
+                                             + "WHEN MATCHED AND S.booked < @cap1 THEN UPDATE SET booked = S.booked + 1 "
+                                             + "WHEN NOT MATCHED AND @cap1 > 0 THEN INSERT (fid, booked) VALUES (F.fid, 1); "
+                                             + "IF @@ROWCOUNT = 0 SET @status = 2; "
+                                             + "END "
+                                             + "IF @status = 0 AND @fid2 IS NOT NULL BEGIN "
+                                             + "MERGE SeatsBooked_yangsam WITH (HOLDLOCK) AS S USING (SELECT @fid2 AS fid) AS F ON S.fid = F.fid "
+                                             + "WHEN MATCHED AND S.booked < @cap2 THEN UPDATE SET booked = S.booked + 1 "
+                                             + "WHEN NOT MATCHED AND @cap2 > 0 THEN INSERT (fid, booked) VALUES (F.fid, 1); "
+                                             + "IF @@ROWCOUNT = 0 SET @status = 2; "
+                                             + "END "
+                                             + "IF @status = 0 BEGIN "
+                                             + "UPDATE ReservationIds_yangsam SET @res_id = last_id = last_id + 1; "
+                                             + "INSERT INTO Reservations_yangsam (res_id, paid, username, day_of_month, fid1, fid2) VALUES (@res_id, 0, @user, @day, @fid1, @fid2); "
+                                             + "COMMIT TRAN; "
+                                             + "END ELSE ROLLBACK TRAN; "
+                                             + "END TRY "
+                                             + "BEGIN CATCH "
+                                             + "IF XACT_STATE() <> 0 ROLLBACK TRAN; "
+                                             + "SET @status = CASE WHEN ERROR_NUMBER() = 1205 THEN 3 ELSE 4 END; "
+                                             + "SET @res_id = NULL; "
+                                             + "END CATCH "
+                                             + "SELECT @status AS status, @res_id AS res_id;";
+  private PreparedStatement bookBatchStatement;
+
+  private static final int BOOK_OK = 0;
+  private static final int BOOK_SAME_DAY = 1;
+  private static final int BOOK_FULL = 2;
+  private static final int BOOK_DEADLOCK = 3;
+
+  // Pay in one round trip: marks the reservation paid only if it is still unpaid, and debits
+  // the user only if the balance covers it, so no row has to be read before it is written.
+  // Returns a PAY_* status, the cost, and the balance (remaining, or short of the cost).
+  private static final String PAY_BATCH_SQL = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+                                            + "DECLARE @res_id INT = ?, @user VARCHAR(20) = ?; "
+                                            + "DECLARE @status INT = 0, @cost INT = NULL, @balance INT = NULL; "
+                                            + "BEGIN TRY "
+                                            + "BEGIN TRAN; "
+                                            + "UPDATE R SET @cost = F1.price + ISNULL(F2.price, 0) + ISNULL((SELECT SUM(F.price) FROM ReservationLegs_yangsam AS L "
+                                            + "INNER JOIN Flights F ON L.fid = F.fid WHERE L.res_id = R.res_id), 0), paid = 1 "
+                                            + "FROM Reservations_yangsam AS R "
+                                            + "LEFT JOIN Flights F1 ON R.fid1 = F1.fid "
+                                            + "LEFT JOIN Flights F2 ON R.fid2 = F2.fid "
+                                            + "WHERE R.res_id = @res_id AND R.username = @user AND R.paid = 0; "
+                                            + "IF @@ROWCOUNT = 0 SET @status = 1; "
+                                            + "IF @status = 0 BEGIN "
+                                            + "UPDATE Users_yangsam SET @balance = balance = balance - @cost "
+                                            + "WHERE username = @user AND balance >= @cost; "
+                                            + "IF @@ROWCOUNT = 0 BEGIN "
+                                            + "SELECT @balance = balance FROM Users_yangsam WHERE username = @user; "
+                                            + "SET @status = CASE WHEN @balance IS NULL THEN 3 ELSE 2 END; "
+                                            + "END "
+                                            + "END "
+                                            + "IF @status = 0 COMMIT TRAN; ELSE ROLLBACK TRAN; "
+                                            + "END TRY "
+                                            + "BEGIN CATCH "
+                                            + "IF XACT_STATE() <> 0 ROLLBACK TRAN; "
+                                            + "SET @status = CASE WHEN ERROR_NUMBER() = 1205 THEN 4 ELSE 5 END; "
+                                            + "END CATCH "
+                                            + "SELECT @status AS status, @cost AS cost, @balance AS balance;";
+  private PreparedStatement payBatchStatement;
+
+  private static final int PAY_OK = 0;
+  private static final int PAY_NOT_FOUND = 1;
+  private static final int PAY_TOO_POOR = 2;
+  private static final int PAY_NO_USER = 3;
+  private static final int PAY_DEADLOCK = 4;
 
   // Reservations
-  private static final String FIND_RESERVE_SQL = "SELECT R.res_id, R.paid, F1.fid AS fid1, F1.day_of_month AS day1, F1.carrier_id AS carrier1, "
-                                               + "F1.flight_num AS flight_num1, F1.origin_city AS origin1, F1.dest_city AS dest1, "
-                                               + "F1.actual_time AS time1, F1.capacity AS capacity1, F1.price AS price1, "
-                                               + "F2.fid AS fid2, F2.day_of_month AS day2, F2.carrier_id AS carrier2, "
-                                               + "F2.flight_num AS flight_num2, F2.origin_city AS origin2, F2.dest_city AS dest2, "
-                                               + "F2.actual_time AS time2, F2.capacity AS capacity2, F2.price AS price2 "
+  // One page of a user's reservations, after a given ID, by seeking the (username, res_id)
+  // index.  Flights are rendered from the flight store, so Flights is not joined.  Flights
+  // after the second come back as a comma-separated list, in order.
+  private static final String FIND_RESERVE_SQL = "SELECT TOP (?) res_id, paid, fid1, fid2, "
+                                               + "(SELECT STRING_AGG(CAST(L.fid AS VARCHAR(12)), ',') WITHIN GROUP (ORDER BY L.leg) "
+                                               + "FROM ReservationLegs_yangsam AS L WHERE L.res_id = R.res_id) AS more_fids "
                                                + "FROM Reservations_yangsam AS R "
-                                               + "LEFT JOIN Flights F1 ON R.fid1 = F1.fid "
-                                               + "LEFT JOIN Flights F2 ON R.fid2 = F2.fid "
-                                               + "WHERE R.username = ? "
-                                               + "ORDER BY R.res_id ASC";
+                                               + "WHERE username = ? AND res_id > ? "
+                                               + "ORDER BY res_id ASC";
   private PreparedStatement findReserveStatement;
 
+  // Rough rendered sizes, for sizing each response's buffer up front
+  private static final int ITINERARY_HEADER_CHARS = 48;
+  private static final int FLIGHT_LINE_CHARS = 128;
+
+  // Reservations are fetched this many at a time
+  private static final int RESERVATION_PAGE_SIZE = 256;
+
   //
   // Instance variables
   //
 
   private String user_name; // user's created username
   private boolean loggedIn; // indicates if user is logged in or not
-  private List<Itinerary> itineraries; // booking itineraries
+  private int[] itineraries; // last search's itineraries, packed by Itinerary.packInto
+  private int[] itineraryStarts; // where each itinerary starts in itineraries
+  private int numItineraries; // number of itineraries packed into itineraries
+  private FlightIndex flightIndex; // shared in-memory index used by search
+  private FlightStore flightStore; // shared columnar copy of the Flights table
+  private RetryPolicy bookRetry; // shared retry policy and counters for booking
+  private int bookIsolation; // isolation level bookings run at
+  private RetryPolicy payRetry; // shared retry policy and counters for payments
+  private int payIsolation; // isolation level payments run at
+  private int readIsolation; // isolation level everything else runs at
+  private boolean bookInOneTrip; // whether bookings run as a single batch
+  private UnknownUserCache unknownUsers; // shared cache of user names that do not exist
 
   protected Query() throws SQLException, IOException {
     this.user_name = "";
     this.loggedIn = false;
     this.itineraries = null;
-    prepareStatements();
+    this.itineraryStarts = null;
+    this.numItineraries = 0;
+    this.bookRetry = RetryPolicy.named("book");
+    this.bookIsolation = DBConnUtils.getIsolationProperty("flightapp.book.isolation",
+                                                          Connection.TRANSACTION_READ_COMMITTED);
+    this.payRetry = RetryPolicy.named("pay");
+    this.payIsolation = DBConnUtils.getIsolationProperty("flightapp.pay.isolation",
+                                                         Connection.TRANSACTION_READ_COMMITTED);
+    this.readIsolation = DBConnUtils.getReadIsolation();
+    this.unknownUsers = UnknownUserCache.getInstance();
+    this.bookInOneTrip = isBatchMode(DBConnUtils.getProperty("flightapp.book.mode", "statements"));
+
+    // Load the shared flight index if this is the first session
+    borrowConnection();
+    try {
+      this.flightIndex = FlightIndex.getInstance(conn);
+      this.flightStore = flightIndex.store();
+    } finally {
+      releaseConnection();
+    }
+  }
+
+  /**
+   * The shared flight index this session searches
+   */
+  FlightIndex flightIndex() {
+    return flightIndex;
   }
 
   /**
@@ -135,9 +246,18 @@ public class Query extends QueryAbstract {
    */
   public void clearTables() {
     try {
-      // Clear all tables made
-      clearReserves.executeUpdate();
-      clearUsers.executeUpdate();
+      borrowConnection();
+      try {
+        // Clear all tables made
+        executeUpdate(clearLegs);
+        executeUpdate(clearReserves);
+        executeUpdate(clearUsers);
+        executeUpdate(clearSeats);
+        executeUpdate(clearReservationIds);
+        unknownUsers.clear();
+      } finally {
+        releaseConnection();
+      }
 
     } catch (Exception e) {
       e.printStackTrace();
@@ -145,40 +265,41 @@ public class Query extends QueryAbstract {
   }
 
   /*
-   * prepare all the SQL statements in this method.
+   * prepare all the SQL statements in this method.  Statements are cached on each pooled
+   * connection, so this only prepares the ones the borrowed connection has not seen yet.
    */
-  private void prepareStatements() throws SQLException {
-    flightCapacityStmt = conn.prepareStatement(FLIGHT_CAPACITY_SQL);
+  @Override
+  protected void connectionBorrowed() throws SQLException {
+    flightCapacityStmt = prepare("flight_capacity", FLIGHT_CAPACITY_SQL);
 
     // Clear table
-    clearReserves = conn.prepareStatement(CLEAR_RESERVE);
-    clearUsers = conn.prepareStatement(CLEAR_USERS);
+    clearLegs = prepare("clear_legs", CLEAR_LEGS);
+    clearReserves = prepare("clear_reservations", CLEAR_RESERVE);
+    clearUsers = prepare("clear_users", CLEAR_USERS);
+    clearSeats = prepare("clear_seats", CLEAR_SEATS);
+    clearReservationIds = prepare("clear_reservation_ids", CLEAR_RESERVATION_IDS);
     
     // Create
-    createUserStatement = conn.prepareStatement(CREATE_USER_SQL);
+    createUserStatement = prepare("create_user", CREATE_USER_SQL);
 
     // Login
-    checkUserStatement = conn.prepareStatement(CHECK_USER_SQL);
-    getPasswordStatement = conn.prepareStatement(GET_PASSWORD_SQL);
-
-    // Search
-    searchStatement1 = conn.prepareStatement(SEARCH_SQL1);
-    searchStatement2 = conn.prepareStatement(SEARCH_SQL2);
+    findUserStatement = prepare("find_user", FIND_USER_SQL);
 
     // Booking
-    sameDayStatement = conn.prepareStatement(SAME_DAY_SQL);
-    capacityStatement = conn.prepareStatement(CAPACITY_SQL);
-    reservationStatement = conn.prepareStatement(RESERVATION_SQL);
-    makeReservationStatement = conn.prepareStatement(MAKE_RESERVATION_SQL);
+    sameDayStatement = prepare("same_day", SAME_DAY_SQL);
+    takeSeatStatement = prepare("take_seat", TAKE_SEAT_SQL);
+    nextReservationIdStatement = prepare("next_reservation_id", NEXT_RESERVATION_ID_SQL);
+    makeReservationStatement = prepare("make_reservation", MAKE_RESERVATION_SQL);
+    makeLegStatement = prepare("make_leg", MAKE_LEG_SQL);
+    userVersionStatement = prepare("user_version", USER_VERSION_SQL);
+    bumpVersionStatement = prepare("bump_version", BUMP_VERSION_SQL);
+    bookBatchStatement = prepare("book_batch", BOOK_BATCH_SQL);
 
     // Pay
-    verifyStatement = conn.prepareStatement(VERIFY_SQL);
-    balanceStatement = conn.prepareStatement(BALANCE_SQL);
-    updateBalStatement = conn.prepareStatement(UPDATE_BAL_SQL);
-    updateReserveStatement = conn.prepareStatement(UPDATE_RESERVE_SQL);
+    payBatchStatement = prepare("pay_batch", PAY_BATCH_SQL);
 
     // Reservations
-    findReserveStatement = conn.prepareStatement(FIND_RESERVE_SQL);
+    findReserveStatement = prepare("find_reservations", FIND_RESERVE_SQL);
   }
 
   /* See QueryAbstract.java for javadoc */
@@ -187,35 +308,43 @@ public class Query extends QueryAbstract {
       return "User already logged in\n";
     }
 
-    try {
-      // Check if username exists
-      checkUserStatement.setString(1, username);
-      try (ResultSet rs = checkUserStatement.executeQuery()) {
-        if (!rs.next()) {
-          return "Login failed\n";
-        }
-      }
+    // Recently looked up and not found
+    if (unknownUsers.contains(username)) {
+      return "Login failed\n";
+    }
 
-      // Get hashed password
-      getPasswordStatement.setString(1, username);
-      try (ResultSet rs = getPasswordStatement.executeQuery()) {
-        if (rs.next()) {
-          byte[] storedHash = rs.getBytes("hashedPassword");
-
-          // If password matches
-          if (PasswordUtils.plaintextMatchesSaltedHash(password, storedHash)) {
-            this.user_name = username;
-            this.loggedIn = true;
-            this.itineraries = null;
-            return "Logged in as " + this.user_name + "\n";
-          } else {
+    try {
+      // Get hashed password, if the username exists.  The connection goes back to the pool
+      // before the (slow) hash check, so waiting logins do not hold database connections.
+      long stamp = unknownUsers.stamp();
+      byte[] storedHash;
+      borrowConnection();
+      try {
+        findUserStatement.setString(1, username);
+        try (ResultSet rs = executeQuery(findUserStatement)) {
+          if (!rs.next()) {
+            unknownUsers.add(username, stamp);
             return "Login failed\n";
           }
-        } else {
-          return "Login failed\n";
+          storedHash = rs.getBytes("hashedPassword");
         }
+      } finally {
+        releaseConnection();
       }
-    } catch (SQLException e) {
+
+      // If password matches
+      if (PasswordUtils.plaintextMatchesSaltedHash(password, storedHash)) {
+        this.user_name = username;
+        this.loggedIn = true;
+        this.itineraries = null;
+        this.itineraryStarts = null;
+        this.numItineraries = 0;
+        return "Logged in as " + this.user_name + "\n";
+      } else {
+        return "Login failed\n";
+      }
+    } catch (SQLException | IllegalStateException e) {
+      // IllegalStateException: the password could not be hashed, eg under overload
       return "Login failed\n";
     }
   }
@@ -227,153 +356,137 @@ public class Query extends QueryAbstract {
     }
 
     try {
-      // Check for existing username
-      checkUserStatement.setString(1, username);
-      try (ResultSet rs = checkUserStatement.executeQuery()) {
-        if (rs.next()) {
-          return "Failed to create user\n";
-        }
-      }
-
-      // Generate salted hash
+      // Generate salted hash first, so no database connection is held while it runs
       byte[] saltedHash = PasswordUtils.saltAndHashPassword(password);
 
-      // Create new user in table
-      createUserStatement.setString(1, username);
-      createUserStatement.setBytes(2, saltedHash);
-      createUserStatement.setInt(3, initAmount);
-      createUserStatement.executeUpdate();
+      borrowConnection();
+      try {
+        // Check for existing username
+        findUserStatement.setString(1, username);
+        try (ResultSet rs = executeQuery(findUserStatement)) {
+          if (rs.next()) {
+            return "Failed to create user\n";
+          }
+        }
+
+        // Create new user in table
+        createUserStatement.setString(1, username);
+        createUserStatement.setBytes(2, saltedHash);
+        createUserStatement.setInt(3, initAmount);
+        executeUpdate(createUserStatement);
+        unknownUsers.remove(username);
+      } finally {
+        releaseConnection();
+      }
 
       // Set username
       this.user_name = username;
 
       return "Created user " + this.user_name + "\n";
-    } catch (SQLException e) {
+    } catch (SQLException | IllegalStateException e) {
       return "Failed to create user\n";
     }
 }
 
   /* See QueryAbstract.java for javadoc */
-  public String transaction_search(String originCity, String destinationCity, 
-                                   boolean directFlight, int dayOfMonth,
-                                   int numberOfItineraries) {
+  public int transaction_search(String originCity, String destinationCity, 
+                                boolean directFlight, int dayOfMonth,
+                                int numberOfItineraries, int maxStops,
+                                Appendable out) throws IOException {
+    SearchCache.Result found;
+    try {
+      // Prioritize direct flights; the shared index (and its cache) fills the rest
+      found = flightIndex.search(originCity, destinationCity, dayOfMonth,
+                                 directFlight ? 0 : maxStops, numberOfItineraries);
+    } catch (RuntimeException e) {
+      out.append("Failed to search\n");
+      return 0;
+    }
+    return transaction_search(found, out);
+  }
 
+  /* See QueryAbstract.java for javadoc */
+  int transaction_search(SearchCache.Result found, Appendable out) throws IOException {
+    Itinerary[] ranked;
     try {
-      // Prioritize direct flights
-      List<Itinerary> direct = searchDirectFlights(originCity, destinationCity, dayOfMonth, numberOfItineraries);
-      List<Itinerary> indirect = new ArrayList<>();
+      ranked = keepItineraries(found);
+    } catch (RuntimeException e) {
+      out.append("Failed to search\n");
+      return 0;
+    }
 
-      if (!directFlight) {
-        indirect = searchIndirectFlights(originCity, destinationCity, dayOfMonth, numberOfItineraries - direct.size());
-      }
+    // If no itineraries were found
+    if (ranked.length == 0) {
+      out.append("No flights match your selection\n");
+      return 0;
+    }
 
-      // Combine the direct and indirect itineraries
-      List<Itinerary> iti = new ArrayList<>();
-      iti.addAll(direct);
-      iti.addAll(indirect);
+    // Format one itinerary at a time, reading its flights straight from the flight store
+    StringBuilder itinerary = new StringBuilder(ITINERARY_HEADER_CHARS
+                                                + (FlightIndex.MAX_STOPS + 1) * FLIGHT_LINE_CHARS);
+    for (Itinerary next : ranked) {
+      itinerary.setLength(0);
+      out.append(next.appendTo(itinerary));
+    }
+    return ranked.length;
+  }
 
-      // If no itineraries were found
-      if (iti.size() == 0) {
-        return "No flights match your selection\n";
-      }
-      
-      // Sort the itineraries by time
-      Collections.sort(iti);
-      
-      // Set itineraries to the itineraries found for later use
-      this.itineraries = iti;
-      
-      // Format itineraries
-      String result = "";
-      for (int i = 0; i < iti.size(); i++) {
-        iti.get(i).setID(i);
-        result += iti.get(i).toString();
-      }
-      return result;
+  // Ranks a search's itineraries and keeps them, packed, as the session's search results; a
+  // search that found nothing leaves the last results in place
+  private Itinerary[] keepItineraries(SearchCache.Result found) {
+    int numFound = found.direct.length + found.indirect.size();
+    Itinerary[] ranked = new Itinerary[numFound];
+    if (numFound == 0) {
+      return ranked;
+    }
 
-    } catch (SQLException e) {
-      return "Failed to search\n";
+    // Both lists are already ranked, so merge them in order
+    int packedLength = found.direct.length * (Itinerary.HEADER + 1);
+    for (int[] route : found.indirect) {
+      packedLength += Itinerary.HEADER + route.length;
     }
+    int[] packed = new int[packedLength];
+    int[] starts = new int[numFound];
+    int offset = 0;
+    int nextDirect = 0;
+    int nextIndirect = 0;
+    Itinerary direct = directItinerary(found.direct, nextDirect);
+    Itinerary indirect = indirectItinerary(found.indirect, nextIndirect);
+    for (int i = 0; i < numFound; i++) {
+      Itinerary next;
+      if (indirect == null || (direct != null && direct.compareTo(indirect) <= 0)) {
+        next = direct;
+        direct = directItinerary(found.direct, ++nextDirect);
+      } else {
+        next = indirect;
+        indirect = indirectItinerary(found.indirect, ++nextIndirect);
+      }
+      next.setID(i);
+      next.packInto(packed, offset);
+      starts[i] = offset;
+      offset += next.packedLength();
+      ranked[i] = next;
+    }
+    this.itineraries = packed;
+    this.itineraryStarts = starts;
+    this.numItineraries = numFound;
+    return ranked;
   }
 
-  // Use to find direct flights and store them
-  private List<Itinerary> searchDirectFlights(String origin_city, String dest_city, int dayOfMonth, int num_itinerary) throws SQLException {
-    searchStatement1.clearParameters();
-    searchStatement1.setString(1, origin_city);
-    searchStatement1.setString(2, dest_city);
-    searchStatement1.setInt(3, dayOfMonth);
-
-    // Search for direct flights and store as itineraries
-    List<Itinerary> itinerary = new ArrayList<>();
-    try (ResultSet rs = searchStatement1.executeQuery()) {
-      while (rs.next() && itinerary.size() < num_itinerary) {
-        // Get values and create flight to store as itinerary
-        int id = rs.getInt("fid");
-        int day = rs.getInt("day_of_month");
-        String carrier = rs.getString("carrier_id");
-        String flight_num = rs.getString("flight_num");
-        String origin = rs.getString("origin_city");
-        String dest = rs.getString("dest_city");
-        int time = rs.getInt("actual_time");
-        int space = rs.getInt("capacity");
-        int price = rs.getInt("price");
-
-        Flight flight = new Flight(id, day, carrier, flight_num, origin, dest, time, space, price);
-        
-        // Store itinerary in list
-        Itinerary flight_info = new Itinerary(flight, null);
-        flight_info.addToFlights(flight);
-        itinerary.add(flight_info);
-      }
+  // The i'th direct flight as an itinerary, or null past the end
+  private Itinerary directItinerary(int[] rows, int i) {
+    if (i >= rows.length) {
+      return null;
     }
-    return itinerary;
+    return new Itinerary(new int[] {rows[i]});
   }
 
-  // Used to find indirect flights and store them
-  private List<Itinerary> searchIndirectFlights(String origin_city, String dest_city, int dayOfMonth, int num_itinerary) throws SQLException {
-    searchStatement2.clearParameters();
-    searchStatement2.setString(1, origin_city);
-    searchStatement2.setString(2, dest_city);
-    searchStatement2.setInt(3, dayOfMonth);
-    searchStatement2.setInt(4, dayOfMonth);
-
-    List<Itinerary> itinerary = new ArrayList<>();
-    try (ResultSet rs = searchStatement2.executeQuery()) {
-      while (rs.next() && itinerary.size() < num_itinerary) {
-        // Get values and create flight1 to store as itinerary
-        int id1 = rs.getInt("fid1");
-        int day1 = rs.getInt("day1");
-        String carrier1 = rs.getString("carrier1");
-        String flight_num1 = rs.getString("flight_num1");
-        String origin1 = rs.getString("origin1");
-        String dest1 = rs.getString("dest1");
-        int time1 = rs.getInt("time1");
-        int space1 = rs.getInt("space1");
-        int price1 = rs.getInt("price1");
-
-        Flight flight1 = new Flight(id1, day1, carrier1, flight_num1, origin1, dest1, time1, space1, price1);
-        
-        // Get values and create flight2 to store as itinerary
-        int id2 = rs.getInt("fid2");
-        int day2 = rs.getInt("day2");
-        String carrier2 = rs.getString("carrier2");
-        String flight_num2 = rs.getString("flight_num2");
-        String origin2 = rs.getString("origin2");
-        String dest2 = rs.getString("dest2");
-        int time2 = rs.getInt("time2");
-        int space2 = rs.getInt("space2");
-        int price2 = rs.getInt("price2");
-        
-        Flight flight2 = new Flight(id2, day2, carrier2, flight_num2, origin2, dest2, time2, space2, price2);
-
-        // Store itinerary in list
-        Itinerary flight_info = new Itinerary(flight1, flight2);
-        flight_info.addToFlights(flight1);
-        flight_info.addToFlights(flight2);
-        itinerary.add(flight_info);
-      }
+  // The i'th connecting route as an itinerary, or null past the end
+  private Itinerary indirectItinerary(List<int[]> routes, int i) {
+    if (i >= routes.size()) {
+      return null;
     }
-    return itinerary;
+    return new Itinerary(routes.get(i));
   }
 
   /* See QueryAbstract.java for javadoc */
@@ -388,116 +501,231 @@ public class Query extends QueryAbstract {
       return "No such itinerary " + itineraryId + "\n";
     }
 
-    if (itineraryId >= itineraries.size()) {
+    if (itineraryId < 0 || itineraryId >= numItineraries) {
       return "No such itinerary " + itineraryId + "\n";
     }
 
     // Get itinerary
-    Itinerary itinerary = itineraries.get(itineraryId);
-    if (itinerary == null) {
-      return "No such itinerary " + itineraryId + "\n";
+    Itinerary itinerary = unpack(itineraries, itineraryStarts, itineraryId);
+
+    // The batch only books up to two flights
+    if (bookInOneTrip && itinerary.numFlights <= 2) {
+      return bookBatch(itinerary);
     }
 
-    // Initialize reservation ID and flight type
-    int reservationId = 0;
-    int direct = 1;
+    // Retry on deadlocks and on concurrent bookings by the same user, with backoff
+    for (int attempt = 1; ; attempt++) {
+      bookRetry.attempt();
+      try {
+        beginTransaction(bookIsolation);
 
-    try {
-      conn.setAutoCommit(false);
+        String result = tryBook(itinerary);
+        if (result != null) {
+          return result;
+        }
 
-      // Check if user has already booked a flight on the same day
-      for (Flight flight : itinerary.flights) {
-        sameDayStatement.setInt(1, flight.dayOfMonth);
-        sameDayStatement.setString(2, user_name);
-        try (ResultSet rs = sameDayStatement.executeQuery()) {
-          if (rs.next()) {
-            conn.rollback();
-            return "You cannot book two flights in the same day\n";
-          }
+        // Another booking by this user committed first
+        rollbackTransaction();
+        if (!bookRetry.retry(attempt, false)) {
+          return "Booking failed\n";
         }
-      }
 
-      // Check capacity of flight1 and flight2 (if there is a flight2)
-      for (Flight flight : itinerary.flights) {
-        capacityStatement.setInt(1, flight.fid);
-          try (ResultSet rs = capacityStatement.executeQuery()) {
-          if (rs.next()) {
-            int num_seats = rs.getInt("num_seats");
-            if (num_seats <= 0) {
-              conn.rollback();
-              return "Booking failed\n";
-            }
-          }
+      } catch (SQLException e1) {
+        try {
+          rollbackTransaction();
+        } catch (SQLException e2) {
+          e2.printStackTrace();
         }
-      }
 
-      // Get the next reservation ID and keep track of it
-      try (ResultSet rs = reservationStatement.executeQuery()) {
-        if (rs.next() && rs.getInt("reserve_num") > 0) {
-          reservationId = rs.getInt("reserve_num") + 1;
-        } else {
-          reservationId = 1;
+        // If deadlock, retry
+        if (!isDeadlock(e1) || !bookRetry.retry(attempt, true)) {
+          e1.printStackTrace();
+          return "Booking failed\n";
         }
-      } catch (SQLException e) {
-        conn.rollback();
+
+      } finally {
+        try {
+          endTransaction();
+          useIsolation(readIsolation);
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * One attempt at booking the itinerary, inside an open transaction.  Commits and returns the
+   * response on success, rolls back and returns the response on a booking error, and returns
+   * null without committing if another booking by this user committed since the attempt
+   * started.
+   *
+   * Seats and reservation IDs are claimed with guarded single-row updates, and the user's
+   * version number is checked and bumped just before commit, so the attempt does not need
+   * SERIALIZABLE range locks to stay consistent.
+   */
+  private String tryBook(Itinerary itinerary) throws SQLException {
+    // Initialize reservation ID and flight type
+    int reservationId = 0;
+    int direct = 1;
+
+    // Remember the user's version, to detect a concurrent booking by the same user
+    int version;
+    userVersionStatement.setString(1, user_name);
+    try (ResultSet rs = executeQuery(userVersionStatement)) {
+      if (!rs.next()) {
+        rollbackTransaction();
         return "Booking failed\n";
       }
+      version = rs.getInt("version");
+    }
 
-      // Create flights to make a reservation
-      Flight f1 = itinerary.flight1;
-      Flight f2 = itinerary.flight2;
+    // Check if user has already booked a flight on the same day; every leg of an itinerary
+    // flies on the same day
+    int day = flightStore.day(itinerary.flight1);
+    sameDayStatement.setString(1, user_name);
+    sameDayStatement.setInt(2, day);
+    try (ResultSet rs = executeQuery(sameDayStatement)) {
+      if (rs.next()) {
+        rollbackTransaction();
+        return "You cannot book two flights in the same day\n";
+      }
+    }
 
-      // If there is a second flight, indicate indirect flight
-      if (f2 != null) {
-        direct = 0;
+    // Take a seat on every flight, failing if any is full
+    for (int row : itinerary.flights) {
+      takeSeatStatement.setInt(1, flightStore.fid(row));
+      takeSeatStatement.setInt(2, flightStore.capacity(row));
+      if (executeUpdate(takeSeatStatement) == 0) {
+        rollbackTransaction();
+        return "Booking failed\n";
       }
+    }
 
-      // Make reservation to update
-      makeReservationStatement.setInt(1, reservationId);
-      makeReservationStatement.setInt(2, 0);
-      makeReservationStatement.setString(3, user_name);
-      makeReservationStatement.setInt(4, f1.fid);
-      
-      // Flight is indirect, set flight2 ID
-      if (direct == 0) {
-        makeReservationStatement.setInt(5, f2.fid);
-      // Flight is direct
-      } else {
-        makeReservationStatement.setNull(5, java.sql.Types.INTEGER);
+    // Get the next reservation ID and keep track of it
+    try (ResultSet rs = executeQuery(nextReservationIdStatement)) {
+      if (!rs.next()) {
+        rollbackTransaction();
+        return "Booking failed\n";
       }
+      reservationId = rs.getInt("reserve_num");
+    }
 
-      // Update reservation and commit
-      makeReservationStatement.executeUpdate();
-      conn.commit();
-      return "Booked flight(s), reservation ID: " + reservationId + "\n";
-      
-    } catch (SQLException e1) {
-        // If deadlock
-        if (isDeadlock(e1)) {
-        try {
-          conn.rollback();
-          return transaction_book(itineraryId); // Retry if there is a deadlock
-        } catch (SQLException e2) {
-          e2.printStackTrace();
+    // Create flights to make a reservation
+    int f1 = itinerary.flight1;
+    int f2 = itinerary.flight2;
+
+    // If there is a second flight, indicate indirect flight
+    if (f2 != Itinerary.NO_FLIGHT) {
+      direct = 0;
+    }
+
+    // Make reservation to update
+    makeReservationStatement.setInt(1, reservationId);
+    makeReservationStatement.setInt(2, 0);
+    makeReservationStatement.setString(3, user_name);
+    makeReservationStatement.setInt(4, day);
+    makeReservationStatement.setInt(5, flightStore.fid(f1));
+    
+    // Flight is indirect, set flight2 ID
+    if (direct == 0) {
+      makeReservationStatement.setInt(6, flightStore.fid(f2));
+    // Flight is direct
+    } else {
+      makeReservationStatement.setNull(6, java.sql.Types.INTEGER);
+    }
+    executeUpdate(makeReservationStatement);
+
+    // Flights after the second one go in ReservationLegs, numbered from 3
+    for (int i = 2; i < itinerary.numFlights; i++) {
+      makeLegStatement.setInt(1, reservationId);
+      makeLegStatement.setInt(2, i + 1);
+      makeLegStatement.setInt(3, flightStore.fid(itinerary.flights[i]));
+      executeUpdate(makeLegStatement);
+    }
+
+    // Bump the user's version; if it moved, another booking by this user won the race
+    bumpVersionStatement.setString(1, user_name);
+    bumpVersionStatement.setInt(2, version);
+    if (executeUpdate(bumpVersionStatement) == 0) {
+      return null;
+    }
+
+    commitTransaction();
+    return "Booked flight(s), reservation ID: " + reservationId + "\n";
+  }
+
+  /**
+   * Books the itinerary with a single batch (BOOK_BATCH_SQL), which commits or rolls back on
+   * the server.  Retries the whole batch on deadlocks, with backoff.
+   */
+  private String bookBatch(Itinerary itinerary) {
+    for (int attempt = 1; ; attempt++) {
+      bookRetry.attempt();
+      try {
+        useIsolation(bookIsolation);
+
+        bookBatchStatement.setString(1, user_name);
+        bookBatchStatement.setInt(2, flightStore.day(itinerary.flight1));
+        bookBatchStatement.setInt(3, flightStore.fid(itinerary.flight1));
+        bookBatchStatement.setInt(4, flightStore.capacity(itinerary.flight1));
+        if (itinerary.flight2 != Itinerary.NO_FLIGHT) {
+          bookBatchStatement.setInt(5, flightStore.fid(itinerary.flight2));
+          bookBatchStatement.setInt(6, flightStore.capacity(itinerary.flight2));
+        } else {
+          bookBatchStatement.setNull(5, java.sql.Types.INTEGER);
+          bookBatchStatement.setNull(6, java.sql.Types.INTEGER);
         }
-      // Not deadlock
-      } else {
+
+        int status;
+        int reservationId;
+        try (ResultSet rs = executeQuery(bookBatchStatement)) {
+          if (!rs.next()) {
+            return "Booking failed\n";
+          }
+          status = rs.getInt("status");
+          reservationId = rs.getInt("res_id");
+        }
+
+        switch (status) {
+          case BOOK_OK:
+            return "Booked flight(s), reservation ID: " + reservationId + "\n";
+          case BOOK_SAME_DAY:
+            return "You cannot book two flights in the same day\n";
+          case BOOK_DEADLOCK:
+            if (bookRetry.retry(attempt, true)) {
+              continue;
+            }
+            return "Booking failed\n";
+          case BOOK_FULL:
+          default:
+            return "Booking failed\n";
+        }
+
+      } catch (SQLException e) {
+        // If deadlock, retry
+        if (!isDeadlock(e) || !bookRetry.retry(attempt, true)) {
+          e.printStackTrace();
+          return "Booking failed\n";
+        }
+
+      } finally {
         try {
-          conn.rollback();
+          useIsolation(readIsolation);
         } catch (SQLException e) {
           e.printStackTrace();
         }
       }
+    }
+  }
 
-      e1.printStackTrace();
-      return "Booking failed\n";
-
-    } finally {
-      try {
-        conn.setAutoCommit(true);
-      } catch (SQLException e) {
-        e.printStackTrace();
-      }
+  /**
+   * Switches the connection to the given isolation level, unless it is already there.  Reads
+   * run at readIsolation, and only bookings and payments switch away from it.
+   */
+  private void useIsolation(int isolation) throws SQLException {
+    if (conn.getTransactionIsolation() != isolation) {
+      conn.setTransactionIsolation(isolation);
     }
   }
 
@@ -513,127 +741,154 @@ public class Query extends QueryAbstract {
       return "Cannot find unpaid reservation " + reservationId + " under user: " + user_name + "\n";
     }
 
-    try {
-      conn.setAutoCommit(false);
-
-      // Check if reservation exists and not paid for yet
-      verifyStatement.setInt(1, reservationId);
-      verifyStatement.setString(2, user_name);
-      try (ResultSet rs = verifyStatement.executeQuery()) {
-        if (!rs.next() || rs.getInt("paid") == 1) {
-          conn.rollback();
-          return "Cannot find unpaid reservation " + reservationId + " under user: " + user_name + "\n";
-        }
+    // Retry on deadlocks, with backoff
+    for (int attempt = 1; ; attempt++) {
+      payRetry.attempt();
+      try {
+        useIsolation(payIsolation);
 
-        int totalCost = rs.getInt("price1") + Math.max(rs.getInt("price2"), 0);
+        payBatchStatement.setInt(1, reservationId);
+        payBatchStatement.setString(2, user_name);
 
-        // Check if user has enough money in balance
-        balanceStatement.setString(1, user_name);
-        try (ResultSet balanceRs = balanceStatement.executeQuery()) {
-          if (!balanceRs.next()) {
-            conn.rollback();
-            return "User balance check failed\n";
-          }
-
-          int balance = balanceRs.getInt("balance");
-          if (balance < totalCost) {
-            conn.rollback();
-            return "User has only " + balance + " in account but itinerary costs " + totalCost + "\n";
+        int status;
+        int cost;
+        int balance;
+        try (ResultSet rs = executeQuery(payBatchStatement)) {
+          if (!rs.next()) {
+            return "Failed to pay for reservation " + reservationId + "\n";
           }
+          status = rs.getInt("status");
+          cost = rs.getInt("cost");
+          balance = rs.getInt("balance");
+        }
 
-          // If user has enough, update their balance
-          updateBalStatement.setInt(1, totalCost);
-          updateBalStatement.setString(2, user_name);
-          updateBalStatement.executeUpdate();
+        switch (status) {
+          case PAY_OK:
+            return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
+          case PAY_NOT_FOUND:
+            return "Cannot find unpaid reservation " + reservationId + " under user: " + user_name + "\n";
+          case PAY_TOO_POOR:
+            return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
+          case PAY_NO_USER:
+            return "User balance check failed\n";
+          case PAY_DEADLOCK:
+            if (payRetry.retry(attempt, true)) {
+              continue;
+            }
+            return "Failed to pay for reservation " + reservationId + "\n";
+          default:
+            return "Failed to pay for reservation " + reservationId + "\n";
+        }
 
-          // Update the reservation as paid
-          updateReserveStatement.setInt(1, reservationId);
-          updateReserveStatement.executeUpdate();
+      } catch (SQLException e) {
+        // If deadlock, retry
+        if (!isDeadlock(e) || !payRetry.retry(attempt, true)) {
+          e.printStackTrace();
+          return "Failed to pay for reservation " + reservationId + "\n";
+        }
 
-          conn.commit();
-          return "Paid reservation: " + reservationId + " remaining balance: " + (balance - totalCost) + "\n";
+      } finally {
+        try {
+          useIsolation(readIsolation);
+        } catch (SQLException e) {
+          e.printStackTrace();
         }
       }
-    } catch (SQLException e) {
-      try {
-        conn.rollback();
-      } catch (SQLException rollE) {
-        rollE.printStackTrace();
-      }
-
-      e.printStackTrace();
-      return "Failed to pay for reservation " + reservationId + "\n";
-
-    } finally {
-      checkDanglingTransaction();
     }
   }
 
+  /* See QueryAbstract.java for javadoc; deliberately one unbounded page */
+  public int transaction_reservations(Appendable out) throws IOException {
+    return listReservations(0, Integer.MAX_VALUE, out);
+  }
+
   /* See QueryAbstract.java for javadoc */
-  public String transaction_reservations() {
+  public int transaction_reservations(int afterReservationId, int limit, Appendable out)
+      throws IOException {
+    return listReservations(afterReservationId, Math.min(limit, MAX_RESERVATIONS_PAGE), out);
+  }
+
+  // Lists up to limit of the user's reservations after afterReservationId, returning how many
+  private int listReservations(int afterReservationId, int limit, Appendable out)
+      throws IOException {
     // Check if user is logged in
     if (!loggedIn) {
-      return "Cannot view reservations, not logged in\n";
+      out.append("Cannot view reservations, not logged in\n");
+      return 0;
+    }
+
+    if (limit <= 0) {
+      out.append("Failed to retrieve reservations\n");
+      return 0;
     }
 
-    // Resulting reservations string
-    String result = "";
-    boolean reservations = false;
+    // Each page is written out once it has been read in full
+    StringBuilder result = new StringBuilder(2 * FLIGHT_LINE_CHARS);
+    int found = 0;
+    int after = afterReservationId;
 
     try {
-      findReserveStatement.setString(1, user_name);
-      ResultSet rs = findReserveStatement.executeQuery();
-
-      while (rs.next()) {
-        reservations = true;
-        int resId = rs.getInt("res_id");
-        boolean paid = rs.getInt("paid") == 1;
-
-        // Get flight 1
-        int fid1 = rs.getInt("fid1");
-        int day1 = rs.getInt("day1");
-        String carrier1 = rs.getString("carrier1");
-        String flightNum1 = rs.getString("flight_num1");
-        String origin1 = rs.getString("origin1");
-        String dest1 = rs.getString("dest1");
-        int time1 = rs.getInt("time1");
-        int capacity1 = rs.getInt("capacity1");
-        int price1 = rs.getInt("price1");
-
-        // Create flight1
-        Flight flight1 = new Flight(fid1, day1, carrier1, flightNum1, origin1, dest1, time1, capacity1, price1);
-
-        result += "Reservation " + resId + " paid: " + paid + ":\n";
-        result += flight1.toString() + "\n";
-
-        // Check for second flight
-        int fid2 = rs.getInt("fid2");
-        if (fid2 != 0) {
-          int day2 = rs.getInt("day2");
-          String carrier2 = rs.getString("carrier2");
-          String flightNum2 = rs.getString("flight_num2");
-          String origin2 = rs.getString("origin2");
-          String dest2 = rs.getString("dest2");
-          int time2 = rs.getInt("time2");
-          int capacity2 = rs.getInt("capacity2");
-          int price2 = rs.getInt("price2");
-
-          // Create flight2
-          Flight flight2 = new Flight(fid2, day2, carrier2, flightNum2, origin2, dest2, time2, capacity2, price2);
-          result += flight2.toString() + "\n";
+      // Fetch a page at a time, each starting after the last reservation seen
+      while (found < limit) {
+        int pageSize = Math.min(limit - found, RESERVATION_PAGE_SIZE);
+        int rows = 0;
+        result.setLength(0);
+
+        findReserveStatement.setInt(1, pageSize);
+        findReserveStatement.setString(2, user_name);
+        findReserveStatement.setInt(3, after);
+        try (ResultSet rs = executeQuery(findReserveStatement)) {
+          while (rs.next()) {
+            rows++;
+            after = rs.getInt("res_id");
+            boolean paid = rs.getInt("paid") == 1;
+
+            result.append("Reservation ").append(after).append(" paid: ").append(paid).append(":\n");
+            appendReservedFlight(result, rs.getInt("fid1"));
+
+            // Check for second flight
+            int fid2 = rs.getInt("fid2");
+            if (fid2 != 0) {
+              appendReservedFlight(result, fid2);
+            }
+
+            // And any more
+            String moreFids = rs.getString("more_fids");
+            if (moreFids != null) {
+              for (String fid : moreFids.split(",")) {
+                appendReservedFlight(result, Integer.parseInt(fid));
+              }
+            }
+          }
+        }
+        out.append(result);
+
+        found += rows;
+        if (rows < pageSize) {
+          break;
         }
       }
 
       // No reservations found for the user
-      if (!reservations) {
-        return "No reservations found\n";
+      if (found == 0) {
+        out.append("No reservations found\n");
       }
-      return result;
+      return found;
 
     } catch (SQLException e) {
       e.printStackTrace();
-      return "Failed to retrieve reservations\n";
+      out.append("Failed to retrieve reservations\n");
+      return 0;
+    }
+  }
+
+  // Appends a reserved flight, looked up in the flight store
+  private void appendReservedFlight(StringBuilder result, int fid) throws SQLException {
+    int row = flightStore.rowOf(fid);
+    if (row < 0) {
+      throw new SQLException("Reserved flight " + fid + " is not in the flight store");
     }
+    flightStore.appendFlight(result, row).append('\n');
   }
 
   /**
@@ -643,7 +898,7 @@ public class Query extends QueryAbstract {
     flightCapacityStmt.clearParameters();
     flightCapacityStmt.setInt(1, fid);
 
-    ResultSet results = flightCapacityStmt.executeQuery();
+    ResultSet results = executeQuery(flightCapacityStmt);
     results.next();
     int capacity = results.getInt("capacity");
     results.close();
@@ -651,6 +906,21 @@ public class Query extends QueryAbstract {
     return capacity;
   }
 
+  /**
+   * Parses the flightapp.book.mode setting: "statements" books with one statement per step,
+   * and "batch" books in a single round trip
+   */
+  private static boolean isBatchMode(String mode) {
+    switch (mode) {
+      case "statements":
+        return false;
+      case "batch":
+        return true;
+      default:
+        throw new IllegalArgumentException("Unknown flightapp.book.mode: " + mode);
+    }
+  }
+
   /**
    * Utility function to determine whether an error was caused by a deadlock
    */
@@ -663,7 +933,7 @@ public class Query extends QueryAbstract {
    *
    * TODO(hctang): move this into QueryAbstract
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -689,31 +959,64 @@ public class Query extends QueryAbstract {
     
     @Override
     public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: "
-          + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time
-          + " Capacity: " + capacity + " Price: " + price;
+      return append(new StringBuilder(128), fid, dayOfMonth, carrierId, flightNum, originCity,
+                    destCity, time, capacity, price).toString();
+    }
+
+    /**
+     * Appends a flight in the same format as {@link #toString()}, without building a Flight
+     */
+    static StringBuilder append(StringBuilder out, int fid, int day, String carrier,
+                                String fnum, String origin, String dest, int time, int cap,
+                                int price) {
+      return out.append("ID: ").append(fid).append(" Day: ").append(day)
+                .append(" Carrier: ").append(carrier).append(" Number: ").append(fnum)
+                .append(" Origin: ").append(origin).append(" Dest: ").append(dest)
+                .append(" Duration: ").append(time).append(" Capacity: ").append(cap)
+                .append(" Price: ").append(price);
     }
   }
   
+  /**
+   * Rebuilds the {@code index}'th itinerary packed by {@link Itinerary#packInto}
+   */
+  private Itinerary unpack(int[] packed, int[] starts, int index) {
+    int base = starts[index];
+    int numFlights = packed[base + 2];
+    Itinerary itinerary = new Itinerary(
+        Arrays.copyOfRange(packed, base + Itinerary.HEADER, base + Itinerary.HEADER + numFlights));
+    itinerary.setID(index);
+    return itinerary;
+  }
+
+  /**
+   * A search result, made of rows of the shared {@link FlightStore}.  Flights are rendered
+   * straight from the store when the itinerary is printed.
+   *
+   * Sessions only keep their search results packed into an int[]: for each itinerary, the day,
+   * the total time and the number of flights (HEADER ints), then the flights' rows.
+   */
   class Itinerary implements Comparable<Itinerary>{
-    private Flight flight1;
-    private Flight flight2;
-    private List<Flight> flights;
+    static final int NO_FLIGHT = -1;
+    static final int HEADER = 3;
+
+    private int flight1;
+    private int flight2; // NO_FLIGHT if the itinerary is direct
+    private int[] flights;
+    private int numFlights;
     private int id;
     private int time;
 
-    Itinerary(Flight f1, Flight f2){
-      this.flight1 = f1;
-      this.flight2 = f2;
-      this.flights = new ArrayList<>();
+    Itinerary(int[] rows){
+      this.flights = rows;
+      this.numFlights = rows.length;
+      this.flight1 = rows[0];
+      this.flight2 = rows.length > 1 ? rows[1] : NO_FLIGHT;
       this.id = 0;
       this.time = 0;
-    }
-
-    // Add to flight lists
-    void addToFlights(Flight flight){
-      this.flights.add(flight);
-      this.time += flight.time;
+      for (int row : rows) {
+        this.time += flightStore.time(row);
+      }
     }
 
     // Set flight ID
@@ -721,41 +1024,59 @@ public class Query extends QueryAbstract {
       this.id = id;
     }
     
-    // Compare flight times and IDs for sorting
+    // Compare flight times, then each flight's ID in turn, for sorting; an itinerary that runs
+    // out of flights sorts after one that does not
     public int compareTo(Itinerary other){
     // Compare flight times
     if (this.time != other.time) {
       return this.time - other.time;
     }
 
-    // Compare first flight IDs if times are equal
-    if (this.flight1.fid != other.flight1.fid) {
-      return this.flight1.fid - other.flight1.fid;
+    // Compare flight IDs in order if times are equal
+    for (int i = 0; i < Math.max(this.numFlights, other.numFlights); i++) {
+      int thisFid = Integer.MAX_VALUE;
+      int otherFid = Integer.MAX_VALUE;
+      if (i < this.numFlights) {
+        thisFid = flightStore.fid(this.flights[i]);
+      }
+      if (i < other.numFlights) {
+        otherFid = flightStore.fid(other.flights[i]);
+      }
+      if (thisFid != otherFid) {
+        return Integer.compare(thisFid, otherFid);
+      }
     }
+    return 0;
 
-    // Compare the second flight ID if both first IDs are equal
-    int thisFid2 = Integer.MAX_VALUE;
-    int otherFid2 = Integer.MAX_VALUE;
-    if (this.flight2 != null) {
-      thisFid2 = this.flight2.fid;
     }
-    if (other.flight2 != null) {
-      otherFid2 = other.flight2.fid;
+
+    // Number of ints packInto takes
+    int packedLength(){
+      return HEADER + numFlights;
     }
 
-    return thisFid2 - otherFid2;
+    // Pack starting at packed[offset]
+    void packInto(int[] packed, int offset){
+      packed[offset] = flightStore.day(flight1);
+      packed[offset + 1] = time;
+      packed[offset + 2] = numFlights;
+      System.arraycopy(flights, 0, packed, offset + HEADER, numFlights);
+    }
 
+    // Append the itinerary and its flights, reading them straight from the flight store
+    StringBuilder appendTo(StringBuilder out){
+      out.append("Itinerary ").append(this.id).append(": ").append(numFlights)
+         .append(" flight(s), ").append(this.time).append(" minutes\n");
+      for(int i = 0; i < numFlights; i++){
+        flightStore.appendFlight(out, flights[i]).append('\n');
+      }
+      return out;
     }
 
     @Override
     public String toString(){
-      String result = "";
-      for(int i = 0; i < flights.size(); i++){
-        Flight flight = flights.get(i);
-        result += flight.toString() + "\n";
-      }
-      return "Itinerary " + this.id + ": " + flights.size() + " flight(s), " + this.time + " minutes\n" + result;
+      return appendTo(new StringBuilder()).toString();
     }
   }
 
-}
\ No newline at end of file
+}
@@ -2,34 +2,220 @@ package flightapp;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.*;
 import java.util.Properties;
 
 public abstract class QueryAbstract {
-  // DB Connection
+  /**
+   * The most reservations {@link #reservations(int, int)} lists at once
+   */
+  public static final int MAX_RESERVATIONS_PAGE = 256;
+
+  // DB Connection, borrowed from the pool for the length of one command
   protected Connection conn;
+  private PooledConnection pooledConn;
+  private PooledConnection boundConn; // the connection connectionBorrowed() last ran for
+  private int borrowDepth;
+  private final ConnectionPool pool;
 
   // For checking for dangling transactions
   private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
-  private PreparedStatement tranCountStatement;
+
+  // Client-side transaction ledger.  The server is only asked for @@TRANCOUNT after a command
+  // if the ledger cannot vouch for it, or on every trancountCheckEvery-th command.
+  private boolean transactionOpen; // beginTransaction() not yet matched by commit or rollback
+  private boolean statementFailed; // a statement threw, so the server state is unknown
+  private final int trancountCheckEvery;
+  private int commandsSinceCheck;
+
+  // Latency and outcome counters of each command, shared by every session
+  private static final Metrics.Command CLEAR = Metrics.command("clear", null);
+  private static final Metrics.Command LOGIN = Metrics.command("login", "Logged in as ");
+  private static final Metrics.Command CREATE = Metrics.command("create", "Created user ");
+  private static final Metrics.Command SEARCH = Metrics.command("search", "Itinerary ");
+  private static final Metrics.Command BOOK = Metrics.command("book", "Booked ");
+  private static final Metrics.Command PAY = Metrics.command("pay", "Paid ");
+  private static final Metrics.Command RESERVATIONS =
+      Metrics.command("reservations", "Reservation ");
 
   protected QueryAbstract() throws SQLException, IOException {
-    this.conn = DBConnUtils.openConnection();
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
+    this.pool = ConnectionPool.getInstance();
+    this.trancountCheckEvery = DBConnUtils.getIntProperty("flightapp.trancount_check_every", 0);
+    Metrics.startReporter();
   }
 
   /**
-   * Get underlying connection
+   * Get underlying connection, or null if no command is running
    */
   public Connection getConnection() {
     return conn;
   }
 
   /**
-   * Closes the application-to-database connection
+   * Closes the application-to-database connection, handing it back to the pool if a command
+   * left it borrowed
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    if (pooledConn != null) {
+      borrowDepth = 0;
+      releaseConnection0();
+    }
+  }
+
+  /**
+   * Borrow a pooled connection into {@code conn}, unless one is borrowed already.  Every call
+   * must be paired with a call to {@link #releaseConnection()}.
+   */
+  protected void borrowConnection() throws SQLException {
+    if (borrowDepth == 0) {
+      pooledConn = pool.borrow();
+      conn = pooledConn.connection();
+      if (pooledConn != boundConn) {
+        try {
+          connectionBorrowed();
+        } catch (SQLException | RuntimeException e) {
+          boundConn = null;
+          releaseConnection0();
+          throw e;
+        }
+        boundConn = pooledConn;
+      }
+    }
+    borrowDepth++;
+  }
+
+  /**
+   * Called when a connection other than the one borrowed last time is borrowed into
+   * {@code conn}, before any transaction runs on it.  Subclasses can fetch their prepared
+   * statements here; they stay valid for as long as the same connection comes back.
+   */
+  protected void connectionBorrowed() throws SQLException {
+  }
+
+  /**
+   * Undo one call to {@link #borrowConnection()}.  After the outermost one, checks that no
+   * transaction was left open and hands the connection back to the pool.
+   */
+  protected void releaseConnection() {
+    if (borrowDepth > 0 && --borrowDepth == 0) {
+      try {
+        checkDanglingTransaction();
+      } finally {
+        releaseConnection0();
+      }
+    }
+  }
+
+  private void releaseConnection0() {
+    PooledConnection pc = pooledConn;
+    pooledConn = null;
+    conn = null;
+    pc.close();
+  }
+
+  /**
+   * Returns the borrowed connection's cached prepared statement for the given SQL
+   */
+  protected PreparedStatement prepare(String sql) throws SQLException {
+    return prepare(sql, sql);
+  }
+
+  /**
+   * Like {@link #prepare(String)}, timing the statement under {@code name} when it is run
+   * through {@link #executeQuery} or {@link #executeUpdate}
+   */
+  protected PreparedStatement prepare(String name, String sql) throws SQLException {
+    if (pooledConn == null) {
+      throw new IllegalStateException("No database connection is borrowed");
+    }
+    return pooledConn.prepare(name, sql);
+  }
+
+  /**
+   * Runs a statement from {@link #prepare}, recording how long the server took to answer
+   */
+  protected ResultSet executeQuery(PreparedStatement stmt) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return stmt.executeQuery();
+    } catch (SQLException | RuntimeException e) {
+      statementFailed = true;
+      throw e;
+    } finally {
+      recordStatement(stmt, start);
+    }
+  }
+
+  /**
+   * Runs a statement from {@link #prepare}, recording how long it took
+   */
+  protected int executeUpdate(PreparedStatement stmt) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return stmt.executeUpdate();
+    } catch (SQLException | RuntimeException e) {
+      statementFailed = true;
+      throw e;
+    } finally {
+      recordStatement(stmt, start);
+    }
+  }
+
+  private void recordStatement(PreparedStatement stmt, long start) {
+    Metrics.Histogram timer = pooledConn == null ? null : pooledConn.timer(stmt);
+    if (timer != null) {
+      timer.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Starts a client-side transaction at the given isolation level.  It must be ended with
+   * {@link #commitTransaction()} or {@link #rollbackTransaction()}, and autocommit restored
+   * with {@link #endTransaction()}.
+   */
+  protected void beginTransaction(int isolation) throws SQLException {
+    if (conn.getTransactionIsolation() != isolation) {
+      conn.setTransactionIsolation(isolation);
+    }
+    conn.setAutoCommit(false);
+    transactionOpen = true;
+  }
+
+  protected void commitTransaction() throws SQLException {
+    conn.commit();
+    transactionOpen = false;
+  }
+
+  protected void rollbackTransaction() throws SQLException {
+    conn.rollback();
+    transactionOpen = false;
+  }
+
+  /**
+   * Turns autocommit back on after a transaction that was committed or rolled back.  A
+   * transaction still open is left alone, so that it is reported rather than committed.
+   */
+  protected void endTransaction() throws SQLException {
+    if (!transactionOpen) {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Borrows a connection for the length of a command, which is checked for a dangling
+   * transaction when it is released.  Commands that do not call this borrow one themselves,
+   * only for the parts that need the database, if any.
+   *
+   * Each command below times itself inline, including any wait for a connection, so that
+   * running one allocates nothing beyond what its transaction does.
+   */
+  private void borrowForCommand() {
+    try {
+      borrowConnection();
+    } catch (SQLException e) {
+      throw new IllegalStateException("Database error", e);
+    }
   }
 
   /**
@@ -38,13 +224,22 @@ public abstract class QueryAbstract {
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public final void clearTablesWrap() {
+    long start = System.nanoTime();
     try {
-      clearTables();
+      borrowForCommand();
+      try {
+        clearTables();
+      } finally {
+        releaseConnection();
+      }
     } catch (SQLException e) {
+      CLEAR.threw(System.nanoTime() - start);
       throw new RuntimeException(e);
-    } finally {
-      checkDanglingTransaction();
+    } catch (RuntimeException | Error e) {
+      CLEAR.threw(System.nanoTime() - start);
+      throw e;
     }
+    CLEAR.completed(System.nanoTime() - start, null);
   }
 
   public abstract void clearTables() throws SQLException;
@@ -59,11 +254,16 @@ public abstract class QueryAbstract {
    *         other errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public final String login(String username, String password) {
+    long start = System.nanoTime();
+    String response;
     try {
-      return transaction_login(username, password);
-    } finally {
-      checkDanglingTransaction();
+      response = transaction_login(username, password);
+    } catch (RuntimeException | Error e) {
+      LOGIN.threw(System.nanoTime() - start);
+      throw e;
     }
+    LOGIN.completed(System.nanoTime() - start, response);
+    return response;
   }
 
   public abstract String transaction_login(String username, String password);
@@ -79,11 +279,16 @@ public abstract class QueryAbstract {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public final String createCustomer(String username, String password, int initAmount) {
+    long start = System.nanoTime();
+    String response;
     try {
-      return transaction_createCustomer(username, password, initAmount);
-    } finally {
-      checkDanglingTransaction();
+      response = transaction_createCustomer(username, password, initAmount);
+    } catch (RuntimeException | Error e) {
+      CREATE.threw(System.nanoTime() - start);
+      throw e;
     }
+    CREATE.completed(System.nanoTime() - start, response);
+    return response;
   }
 
   public abstract String transaction_createCustomer(String username, String password,
@@ -121,17 +326,80 @@ public abstract class QueryAbstract {
    */
   public final String search(String originCity, String destinationCity, boolean directFlight,
                              int dayOfMonth, int numberOfItineraries) {
+    return search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, 1);
+  }
+
+  /**
+   * Searches like {@link #search(String, String, boolean, int, int)}, except that unless
+   * {@code directFlight} is true, itineraries can make up to {@code maxStops} stops, never
+   * passing through the same city twice.  Direct flights still take the first slots, and
+   * itineraries with stops fill the rest.
+   *
+   * @param maxStops the most stops an itinerary can make, from 0 to FlightIndex.MAX_STOPS;
+   *                 search() makes at most 1
+   *
+   * @return as for {@link #search(String, String, boolean, int, int)}.  Itineraries with the
+   *         same total time are ordered by their flights' IDs, in order.
+   */
+  public final String search(String originCity, String destinationCity, boolean directFlight,
+                             int dayOfMonth, int numberOfItineraries, int maxStops) {
+    StringBuilder response = new StringBuilder();
     try {
-      return transaction_search(originCity, destinationCity, directFlight,
-                                dayOfMonth, numberOfItineraries);
-    } finally {
-      checkDanglingTransaction();
+      search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries,
+             maxStops, response);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // not from a StringBuilder
+    }
+    return response.toString();
+  }
+
+  /**
+   * Like {@link #search(String, String, boolean, int, int, int)}, but writes the response to
+   * {@code out} an itinerary at a time, rather than returning it
+   */
+  public final void search(String originCity, String destinationCity, boolean directFlight,
+                           int dayOfMonth, int numberOfItineraries, int maxStops,
+                           Appendable out) throws IOException {
+    long start = System.nanoTime();
+    int listed;
+    try {
+      listed = transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+                                  numberOfItineraries, maxStops, out);
+    } catch (IOException | RuntimeException | Error e) {
+      SEARCH.threw(System.nanoTime() - start);
+      throw e;
+    }
+    SEARCH.completed(System.nanoTime() - start, listed > 0);
+  }
+
+  /**
+   * Writes the search's response to {@code out}, returning the number of itineraries listed
+   */
+  public abstract int transaction_search(String originCity, String destinationCity,
+                                         boolean directFlight, int dayOfMonth,
+                                         int numberOfItineraries, int maxStops,
+                                         Appendable out) throws IOException;
+
+  /**
+   * Lists a search that has already been run on the shared flight index (by a
+   * {@link CommandPipeline}, ahead of the session) to {@code out}, just as the search() call
+   * with the same arguments would have, and keeps its itineraries for booking.
+   *
+   * @param found the index's result for the search
+   */
+  final void search(SearchCache.Result found, Appendable out) throws IOException {
+    long start = System.nanoTime();
+    int listed;
+    try {
+      listed = transaction_search(found, out);
+    } catch (IOException | RuntimeException | Error e) {
+      SEARCH.threw(System.nanoTime() - start);
+      throw e;
     }
+    SEARCH.completed(System.nanoTime() - start, listed > 0);
   }
 
-  public abstract String transaction_search(String originCity, String destinationCity, 
-                                            boolean directFlight, int dayOfMonth,
-                                            int numberOfItineraries);
+  abstract int transaction_search(SearchCache.Result found, Appendable out) throws IOException;
 
   /**
    * Reserves (but doesn't pay for) an itinerary generated from a previous search.
@@ -154,11 +422,21 @@ public abstract class QueryAbstract {
    * @see #search()
    */
   public final String book(int itineraryId) {
+    long start = System.nanoTime();
+    String response;
     try {
-      return transaction_book(itineraryId);
-    } finally {
-      checkDanglingTransaction();
+      borrowForCommand();
+      try {
+        response = transaction_book(itineraryId);
+      } finally {
+        releaseConnection();
+      }
+    } catch (RuntimeException | Error e) {
+      BOOK.threw(System.nanoTime() - start);
+      throw e;
     }
+    BOOK.completed(System.nanoTime() - start, response);
+    return response;
   }
 
   public abstract String transaction_book(int itineraryId);
@@ -182,11 +460,21 @@ public abstract class QueryAbstract {
    * @see #book()
    */
   public final String pay(int reservationId) {
+    long start = System.nanoTime();
+    String response;
     try {
-      return transaction_pay(reservationId);
-    } finally {
-      checkDanglingTransaction();
+      borrowForCommand();
+      try {
+        response = transaction_pay(reservationId);
+      } finally {
+        releaseConnection();
+      }
+    } catch (RuntimeException | Error e) {
+      PAY.threw(System.nanoTime() - start);
+      throw e;
     }
+    PAY.completed(System.nanoTime() - start, response);
+    return response;
   }
 
   public abstract String transaction_pay(int reservationId);
@@ -194,6 +482,10 @@ public abstract class QueryAbstract {
   /**
    * Prints out reserved itineraries, regardless of their payment status.
    *
+   * Every reservation the user has goes into the one returned String, so the response grows
+   * with the user's history; the command stays unbounded to keep its output unchanged.  Use
+   * {@link #reservations(int, int)} to list a long history a page at a time.
+   *
    * @return If no user has logged in, then return "Cannot view reservations, not logged in\n" If
    *         the user has no reservations, then return "No reservations found\n" For all other
    *         errors, return "Failed to retrieve reservations\n"
@@ -211,34 +503,130 @@ public abstract class QueryAbstract {
    * @see Query.Flight#toString()
    */
   public final String reservations() {
+    StringBuilder response = new StringBuilder();
     try {
-      return transaction_reservations();
-    } finally {
-      checkDanglingTransaction();
+      reservations(response);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // not from a StringBuilder
+    }
+    return response.toString();
+  }
+
+  /**
+   * Like {@link #reservations()}, but writes the response to {@code out} a page of
+   * reservations at a time, rather than returning it.  If reading a later page fails,
+   * "Failed to retrieve reservations\n" follows the pages already written.
+   */
+  public final void reservations(Appendable out) throws IOException {
+    long start = System.nanoTime();
+    int listed;
+    try {
+      borrowForCommand();
+      try {
+        listed = transaction_reservations(out);
+      } finally {
+        releaseConnection();
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      RESERVATIONS.threw(System.nanoTime() - start);
+      throw e;
     }
+    RESERVATIONS.completed(System.nanoTime() - start, listed > 0);
   }
 
-  public abstract String transaction_reservations();
+  /**
+   * Writes the reservations' response to {@code out}, returning the number of reservations
+   * listed
+   */
+  public abstract int transaction_reservations(Appendable out) throws IOException;
+
+  /**
+   * Prints out one page of reserved itineraries, in the same format as {@link #reservations()}.
+   *
+   * @param afterReservationId only list reservations with a greater ID; 0 starts from the first
+   * @param limit              the most reservations to list, must be positive; limits above
+   *                           {@link #MAX_RESERVATIONS_PAGE} list that many
+   *
+   * @return as for {@link #reservations()}.  "No reservations found\n" means there are no
+   *         reservations after {@code afterReservationId}.  To get the next page, pass the last
+   *         reservation ID listed; a page can be shorter than {@code limit} even when more
+   *         reservations follow, if {@code limit} was capped.
+   */
+  public final String reservations(int afterReservationId, int limit) {
+    StringBuilder response = new StringBuilder();
+    try {
+      reservations(afterReservationId, limit, response);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // not from a StringBuilder
+    }
+    return response.toString();
+  }
+
+  /**
+   * Like {@link #reservations(int, int)}, but writes the response to {@code out}, rather than
+   * returning it
+   */
+  public final void reservations(int afterReservationId, int limit, Appendable out)
+      throws IOException {
+    long start = System.nanoTime();
+    int listed;
+    try {
+      borrowForCommand();
+      try {
+        listed = transaction_reservations(afterReservationId, limit, out);
+      } finally {
+        releaseConnection();
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      RESERVATIONS.threw(System.nanoTime() - start);
+      throw e;
+    }
+    RESERVATIONS.completed(System.nanoTime() - start, listed > 0);
+  }
+
+  public abstract int transaction_reservations(int afterReservationId, int limit,
+                                               Appendable out) throws IOException;
 
   /**
    * Throw IllegalStateException if transaction not completely complete, rollback.
    *
+   * The server is only asked when the ledger is unsure: a transaction begun with
+   * {@link #beginTransaction} was not ended, autocommit is off, or a statement failed.  Set
+   * flightapp.trancount_check_every to N to also ask after every N-th command (1 for every
+   * command, when debugging).
    */
   protected void checkDanglingTransaction() throws IllegalStateException {
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
-        if (count > 0) {
+      try {
+        boolean sampled = trancountCheckEvery > 0 && ++commandsSinceCheck >= trancountCheckEvery;
+        if (!transactionOpen && !statementFailed && !sampled && conn.getAutoCommit()) {
+          return;
+        }
+        commandsSinceCheck = 0;
+
+        int count;
+        try (ResultSet rs = executeQuery(prepare("trancount", TRANCOUNT_SQL))) {
+          rs.next();
+          count = rs.getInt("tran_count");
+        }
+        if (transactionOpen || count > 0) {
           throw new IllegalStateException(
               "\nTransaction not fully commited/rolledback. Number of transactions currently"
-              + " in process: " + count
+              + " in process: " + Math.max(count, 1)
               + "\nImportant: transactions must committed or rolledback before returning from"
               + " a method.  Example: flight is full; you must conn.rollback() before returning"
               + " the error string.\n");
         }
       } finally {
-        conn.setAutoCommit(true);
+        statementFailed = false;
+        if (!conn.getAutoCommit()) {
+          // Roll back a dangling transaction rather than let autocommit commit it
+          if (transactionOpen) {
+            conn.rollback();
+          }
+          conn.setAutoCommit(true);
+        }
+        transactionOpen = false;
       }
     } catch (SQLException e) {
       throw new IllegalStateException("Database error", e);
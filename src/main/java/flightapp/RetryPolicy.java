@@ -0,0 +1,132 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a failed transaction attempt should be retried, and sleeps for a jittered
+ * exponential backoff before it is.
+ *
+ * Each policy counts its attempts, retries (split into deadlocks and optimistic-concurrency
+ * conflicts) and the transactions that gave up after the last attempt, so contention can be
+ * observed.  The counters are shared by every session using the policy.
+ *
+ * Settings are read from dbconn.properties (or java system properties), for a policy named
+ * NAME:
+ *   flightapp.NAME.max_attempts        attempts before giving up (default 5)
+ *   flightapp.NAME.base_backoff_ms     backoff ceiling after the first attempt (default 10)
+ *   flightapp.NAME.max_backoff_ms      largest backoff ceiling (default 500)
+ */
+public class RetryPolicy {
+  // Process-wide policies, by name
+  private static final Map<String, RetryPolicy> POLICIES = new LinkedHashMap<>();
+
+  private final String name;
+  private final int maxAttempts;
+  private final long baseBackoffMillis;
+  private final long maxBackoffMillis;
+
+  private final AtomicLong attempts = new AtomicLong();
+  private final AtomicLong deadlocks = new AtomicLong();
+  private final AtomicLong conflicts = new AtomicLong();
+  private final AtomicLong exhausted = new AtomicLong();
+
+  public RetryPolicy(String name, int maxAttempts, long baseBackoffMillis,
+                     long maxBackoffMillis) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("A transaction needs at least one attempt");
+    }
+    this.name = name;
+    this.maxAttempts = maxAttempts;
+    this.baseBackoffMillis = baseBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * Returns the process-wide policy with the given name, creating it from its configured
+   * settings on first use
+   */
+  public static synchronized RetryPolicy named(String name) throws IOException {
+    RetryPolicy policy = POLICIES.get(name);
+    if (policy == null) {
+      String prefix = "flightapp." + name + ".";
+      policy = new RetryPolicy(name,
+                               DBConnUtils.getIntProperty(prefix + "max_attempts", 5),
+                               DBConnUtils.getIntProperty(prefix + "base_backoff_ms", 10),
+                               DBConnUtils.getIntProperty(prefix + "max_backoff_ms", 500));
+      POLICIES.put(name, policy);
+    }
+    return policy;
+  }
+
+  /**
+   * Returns every policy created through {@link #named(String)} so far
+   */
+  public static synchronized List<RetryPolicy> all() {
+    return new ArrayList<>(POLICIES.values());
+  }
+
+  /**
+   * Record the start of an attempt
+   */
+  public void attempt() {
+    attempts.incrementAndGet();
+  }
+
+  /**
+   * Record that attempt number {@code attempt} (counting from 1) failed with a deadlock, if
+   * {@code deadlock}, or an optimistic-concurrency conflict otherwise.  If another attempt is
+   * allowed, sleeps for the backoff and returns true; otherwise returns false.
+   */
+  public boolean retry(int attempt, boolean deadlock) {
+    (deadlock ? deadlocks : conflicts).incrementAndGet();
+    if (attempt >= maxAttempts) {
+      exhausted.incrementAndGet();
+      return false;
+    }
+
+    // "Full jitter": sleep a random time up to an exponentially growing ceiling
+    long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+    if (ceiling > 0) {
+      try {
+        Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        exhausted.incrementAndGet();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long attempts() {
+    return attempts.get();
+  }
+
+  public long retries() {
+    return deadlocks.get() + conflicts.get() - exhausted.get();
+  }
+
+  public long deadlocks() {
+    return deadlocks.get();
+  }
+
+  public long conflicts() {
+    return conflicts.get();
+  }
+
+  public long exhausted() {
+    return exhausted.get();
+  }
+
+  @Override
+  public String toString() {
+    return name + ": attempts=" + attempts() + " retries=" + retries() + " deadlocks="
+        + deadlocks() + " conflicts=" + conflicts() + " gave_up=" + exhausted();
+  }
+}
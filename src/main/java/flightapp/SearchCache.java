@@ -0,0 +1,116 @@
+package flightapp;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, least-recently-used cache of ranked search results, shared by every session.
+ *
+ * Entries are keyed by (origin, destination, day, most stops) and remember how many
+ * itineraries they were computed for, so one entry serves any smaller request.  An entry that
+ * already holds every matching itinerary serves any request at all.
+ *
+ * Search results only depend on the Flights table, which is loaded once and never changes;
+ * bookings change seat counts, but search output does not include them.  So entries never go
+ * stale while their {@link FlightIndex} is in use, and the cache is dropped along with it.
+ */
+public class SearchCache {
+  private final int maxEntries;
+  private final Map<Long, Result> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public SearchCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<Long, Result>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Result> eldest) {
+        return size() > SearchCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Packs the search parameters into a cache key.  City keys come from
+   * {@link FlightStore#cityKey(String)}, and {@code maxStops} is 0 for direct flights only.
+   */
+  static long key(int originKey, int destKey, int day, int maxStops) {
+    return ((long) originKey << 40) | ((long) destKey << 16) | (maxStops << 5) | day;
+  }
+
+  /**
+   * Returns the cached result for the key if it can answer a request for {@code limit}
+   * itineraries, trimmed to that many, or null otherwise
+   */
+  Result get(long key, int limit) {
+    Result result;
+    synchronized (this) {
+      result = maxEntries > 0 ? entries.get(key) : null;
+    }
+    if (result == null || (limit > result.depth && !result.complete)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return result.head(limit);
+  }
+
+  synchronized void put(long key, Result result) {
+    if (maxEntries > 0) {
+      entries.put(key, result);
+    }
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  /**
+   * The ranked rows of one search: direct flights ordered by (time, fid), and connecting
+   * routes (one row per leg) ordered by total time, then by each leg's fid in turn.  Direct
+   * flights take up to {@code depth} slots and connecting routes fill the rest.
+   */
+  static class Result {
+    static final Result EMPTY = new Result(new int[0], Collections.emptyList(), 0, true);
+
+    final int[] direct;
+    final List<int[]> indirect;
+    final int depth;
+    final boolean complete;
+
+    /**
+     * @param depth    the number of itineraries the search asked for
+     * @param complete whether the search found fewer than it asked for, and so found
+     *                 everything
+     */
+    Result(int[] direct, List<int[]> indirect, int depth, boolean complete) {
+      this.direct = direct;
+      this.indirect = indirect;
+      this.depth = depth;
+      this.complete = complete;
+    }
+
+    /**
+     * The result a search for {@code limit} itineraries would have given.  Since direct
+     * flights claim slots first, this is a prefix of each list.
+     */
+    Result head(int limit) {
+      if (limit >= depth) {
+        return this;
+      }
+      int numDirect = Math.min(limit, direct.length);
+      int numIndirect = Math.min(limit - numDirect, indirect.size());
+      return new Result(Arrays.copyOf(direct, numDirect), indirect.subList(0, numIndirect),
+                        limit, false);
+    }
+  }
+}
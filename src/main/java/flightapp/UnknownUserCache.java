@@ -0,0 +1,118 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, expiring cache of user names that were recently looked up and did not exist,
+ * shared by every session.  Logins for a cached name fail without a database round trip, which
+ * absorbs floods of logins for made-up names.
+ *
+ * Creating a user in this process forgets its name right away.  A user created by another
+ * process can still be refused for up to the time-to-live, so the cache is off by default.
+ *
+ * Settings are read from dbconn.properties (or java system properties):
+ *   flightapp.unknown_users.size       names remembered, 0 to turn the cache off (default 0)
+ *   flightapp.unknown_users.ttl_secs   how long a name is remembered (default 30)
+ */
+public class UnknownUserCache {
+  private static UnknownUserCache instance;
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final Map<String, Long> expiries;
+
+  // Bumped whenever a name is forgotten, so a lookup that raced with a create is not cached
+  private final AtomicLong generation = new AtomicLong();
+
+  public UnknownUserCache(int maxEntries, long ttlSecs) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = ttlSecs * 1_000_000_000L;
+    this.expiries = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > UnknownUserCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the process-wide cache, creating it from its configured settings on first use
+   */
+  public static synchronized UnknownUserCache getInstance() throws IOException {
+    if (instance == null) {
+      instance = new UnknownUserCache(
+          DBConnUtils.getIntProperty("flightapp.unknown_users.size", 0),
+          DBConnUtils.getIntProperty("flightapp.unknown_users.ttl_secs", 30));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns a stamp to pass to {@link #add} after looking the user up
+   */
+  long stamp() {
+    return generation.get();
+  }
+
+  /**
+   * Whether the user name was recently found not to exist
+   */
+  boolean contains(String username) {
+    if (maxEntries <= 0) {
+      return false;
+    }
+    String key = key(username);
+    synchronized (this) {
+      Long expiry = expiries.get(key);
+      if (expiry == null) {
+        return false;
+      }
+      if (expiry - System.nanoTime() <= 0) {
+        expiries.remove(key);
+        return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Remembers that the user name does not exist, unless a name was forgotten since
+   * {@code stamp} was taken
+   */
+  void add(String username, long stamp) {
+    if (maxEntries <= 0) {
+      return;
+    }
+    String key = key(username);
+    synchronized (this) {
+      if (generation.get() == stamp) {
+        expiries.put(key, System.nanoTime() + ttlNanos);
+      }
+    }
+  }
+
+  /**
+   * Forgets the user name, eg because it was just created
+   */
+  void remove(String username) {
+    String key = key(username);
+    synchronized (this) {
+      generation.incrementAndGet();
+      expiries.remove(key);
+    }
+  }
+
+  synchronized void clear() {
+    generation.incrementAndGet();
+    expiries.clear();
+  }
+
+  // User names are unique regardless of case
+  private static String key(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+}
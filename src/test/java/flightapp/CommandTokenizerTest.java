@@ -0,0 +1,146 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class CommandTokenizerTest extends TestCase {
+  // The regex FlightService used to tokenize with
+  private static final Pattern REFERENCE = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  public CommandTokenizerTest() { }
+
+  private static List<String> reference(String command) {
+    Matcher m = REFERENCE.matcher(command);
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    return tokens;
+  }
+
+  private static List<String> tokenized(CommandTokenizer tokenizer, String command) {
+    int n = tokenizer.tokenize(command);
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      tokens.add(tokenizer.string(i));
+      // The view must agree with the materialized token
+      assertEquals(tokenizer.string(i), tokenizer.token(i).toString());
+    }
+    return tokens;
+  }
+
+  @Test
+  public void testQuotedCities() {
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    String command = "search \"Seattle WA\" \"Boston MA\" 1 1 10";
+
+    assertEquals(reference(command), tokenized(tokenizer, command));
+    assertEquals(6, tokenizer.count());
+    assertEquals(CommandTokenizer.Kind.SEARCH, tokenizer.kind());
+    assertEquals("Seattle WA", tokenizer.string(1));
+    assertTrue(tokenizer.tokenEquals(3, "1"));
+    assertEquals(10, tokenizer.intValue(5));
+  }
+
+  @Test
+  public void testOddQuotingMatchesRegex() {
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    String[] commands = {
+      "", "   ", "quit", "\"\"", "\"unclosed city", "a\"b c\"d", "\"a\"b", "x \"y  z\" \"",
+      "login \"\" pw", "\t create\u000Bu\fp\r100 ", "book\u00A01", "\"\"\"\"\"",
+    };
+    for (String command : commands) {
+      assertEquals(command, reference(command), tokenized(tokenizer, command));
+    }
+  }
+
+  @Test
+  public void testRandomCommandsMatchRegex() {
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    char[] alphabet = {'a', 'b', '1', '-', '"', '"', ' ', ' ', '\t', '\n', '\r', '\u000B', '\f',
+                       '\u00A0'};
+    Random random = new Random(42);
+    for (int trial = 0; trial < 20000; trial++) {
+      char[] chars = new char[random.nextInt(40)];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = alphabet[random.nextInt(alphabet.length)];
+      }
+      String command = new String(chars);
+      assertEquals(command, reference(command), tokenized(tokenizer, command));
+    }
+  }
+
+  @Test
+  public void testCommandKinds() {
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    String[] names = {"login", "create", "search", "book", "pay", "reservations", "quit"};
+    CommandTokenizer.Kind[] kinds = {
+      CommandTokenizer.Kind.LOGIN, CommandTokenizer.Kind.CREATE, CommandTokenizer.Kind.SEARCH,
+      CommandTokenizer.Kind.BOOK, CommandTokenizer.Kind.PAY,
+      CommandTokenizer.Kind.RESERVATIONS, CommandTokenizer.Kind.QUIT,
+    };
+    for (int i = 0; i < names.length; i++) {
+      tokenizer.tokenize(names[i] + " x");
+      assertEquals(kinds[i], tokenizer.kind());
+    }
+
+    // Command names are case sensitive, and must be the whole token
+    tokenizer.tokenize("Login");
+    assertEquals(CommandTokenizer.Kind.UNKNOWN, tokenizer.kind());
+    tokenizer.tokenize("books");
+    assertEquals(CommandTokenizer.Kind.UNKNOWN, tokenizer.kind());
+    tokenizer.tokenize("");
+    assertEquals(CommandTokenizer.Kind.UNKNOWN, tokenizer.kind());
+
+    // A quoted first token still names its command, as it did with the regex
+    tokenizer.tokenize("\"pay\" 3");
+    assertEquals(CommandTokenizer.Kind.PAY, tokenizer.kind());
+  }
+
+  @Test
+  public void testIntValueMatchesParseInt() {
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    tokenizer.tokenize("-12 +7 2147483647 2147483648 1x");
+    assertEquals(-12, tokenizer.intValue(0));
+    assertEquals(7, tokenizer.intValue(1));
+    assertEquals(Integer.MAX_VALUE, tokenizer.intValue(2));
+    for (int i = 3; i < 5; i++) {
+      try {
+        tokenizer.intValue(i);
+        fail("Parsed " + tokenizer.string(i));
+      } catch (NumberFormatException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testBufferGrowsAndIsReused() {
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append(i).append(' ');
+    }
+    assertEquals(100, tokenizer.tokenize(sb));
+    assertEquals(99, tokenizer.intValue(99));
+
+    // A shorter command replaces every token
+    assertEquals(1, tokenizer.tokenize("quit"));
+    try {
+      tokenizer.token(1);
+      fail("Token from the previous command");
+    } catch (IndexOutOfBoundsException e) {
+      // Expected
+    }
+    assertFalse(tokenizer.tokenEquals(0, "quit "));
+  }
+}
@@ -0,0 +1,278 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class FlightIndexTest extends TestCase {
+  private static final int CITIES = 12;
+  private static final int DAYS = 3;
+
+  public FlightIndexTest() { }
+
+  /**
+   * A random day-skewed store: a few hub cities carry most flights, and times come from a
+   * small set so that many routes tie on total time
+   */
+  private static FlightStore randomStore(Random random, int numFlights) {
+    int[] fids = new int[numFlights];
+    int[] days = new int[numFlights];
+    String[] carriers = new String[numFlights];
+    String[] flightNums = new String[numFlights];
+    String[] origins = new String[numFlights];
+    String[] dests = new String[numFlights];
+    int[] times = new int[numFlights];
+    int[] capacities = new int[numFlights];
+    int[] prices = new int[numFlights];
+    for (int i = 0; i < numFlights; i++) {
+      int origin = pickCity(random);
+      int dest = pickCity(random);
+      if (dest == origin) {
+        dest = (origin + 1 + random.nextInt(CITIES - 1)) % CITIES;
+      }
+      fids[i] = 10 * (i + 1);
+      days[i] = 1 + random.nextInt(DAYS);
+      carriers[i] = "AA";
+      flightNums[i] = Integer.toString(i);
+      // Cities differ by case now and then, which the index should ignore
+      origins[i] = random.nextInt(10) == 0 ? city(origin).toUpperCase() : city(origin);
+      dests[i] = city(dest);
+      times[i] = 30 + 10 * random.nextInt(6);
+      capacities[i] = 10;
+      prices[i] = 100;
+    }
+    return FlightStore.of(fids, days, carriers, flightNums, origins, dests, times, capacities,
+                          prices);
+  }
+
+  private static int pickCity(Random random) {
+    double u = random.nextDouble();
+    return (int) (CITIES * u * u);
+  }
+
+  private static String city(int i) {
+    return "City" + i + " XX";
+  }
+
+  private static int totalTime(FlightStore store, int[] route) {
+    int time = 0;
+    for (int row : route) {
+      time += store.time(row);
+    }
+    return time;
+  }
+
+  // Total time, then each leg's fid in turn; a route that runs out of legs sorts last
+  private static int compare(FlightStore store, int[] a, int[] b) {
+    int cmp = Integer.compare(totalTime(store, a), totalTime(store, b));
+    for (int i = 0; cmp == 0 && i < Math.min(a.length, b.length); i++) {
+      cmp = Integer.compare(store.fid(a[i]), store.fid(b[i]));
+    }
+    return cmp != 0 ? cmp : Integer.compare(b.length, a.length);
+  }
+
+  // Every one-stop pair, best first
+  private static List<int[]> bruteForceIndirect(FlightStore store, String origin, String dest,
+                                                int day, int limit) {
+    int originKey = store.cityKey(origin);
+    int destKey = store.cityKey(dest);
+    List<int[]> pairs = new ArrayList<>();
+    for (int first = 0; first < store.size(); first++) {
+      if (store.day(first) != day || store.originKey(first) != originKey) {
+        continue;
+      }
+      for (int second = 0; second < store.size(); second++) {
+        if (store.day(second) == day && store.destKey(second) == destKey
+            && store.originKey(second) == store.destKey(first)) {
+          pairs.add(new int[] {first, second});
+        }
+      }
+    }
+    pairs.sort((a, b) -> compare(store, a, b));
+    return pairs.size() > limit ? pairs.subList(0, limit) : pairs;
+  }
+
+  // Every route of 2 to maxStops + 1 legs that never returns to a city, best first
+  private static List<int[]> bruteForceConnecting(FlightStore store, int originKey,
+                                                  int destKey, int day, int maxStops,
+                                                  int limit) {
+    List<int[]> routes = new ArrayList<>();
+    extend(store, destKey, day, maxStops + 1, new int[0], new int[] {originKey}, routes);
+    routes.sort((a, b) -> compare(store, a, b));
+    return routes.size() > limit ? routes.subList(0, limit) : routes;
+  }
+
+  private static void extend(FlightStore store, int destKey, int day, int maxLegs, int[] route,
+                             int[] visited, List<int[]> routes) {
+    if (route.length == maxLegs) {
+      return;
+    }
+    int at = visited[visited.length - 1];
+    for (int row = 0; row < store.size(); row++) {
+      if (store.day(row) != day || store.originKey(row) != at) {
+        continue;
+      }
+      int to = store.destKey(row);
+      boolean seen = false;
+      for (int city : visited) {
+        seen |= city == to;
+      }
+      if (seen) {
+        continue;
+      }
+      int[] longer = Arrays.copyOf(route, route.length + 1);
+      longer[route.length] = row;
+      if (to == destKey) {
+        if (longer.length > 1) {
+          routes.add(longer);
+        }
+      } else {
+        int[] more = Arrays.copyOf(visited, visited.length + 1);
+        more[visited.length] = to;
+        extend(store, destKey, day, maxLegs, longer, more, routes);
+      }
+    }
+  }
+
+  private static List<String> fids(FlightStore store, List<int[]> routes) {
+    List<String> fids = new ArrayList<>();
+    for (int[] route : routes) {
+      int[] routeFids = new int[route.length];
+      for (int i = 0; i < route.length; i++) {
+        routeFids[i] = store.fid(route[i]);
+      }
+      fids.add(Arrays.toString(routeFids) + " " + totalTime(store, route));
+    }
+    return fids;
+  }
+
+  @Test
+  public void testStoreFromColumns() {
+    FlightStore store = FlightStore.of(
+        new int[] {3, 7}, new int[] {1, 2}, new String[] {"AS", "B6"},
+        new String[] {"24", "498"}, new String[] {"Seattle WA", "Boston MA"},
+        new String[] {"Boston MA", "seattle wa"}, new int[] {297, 310}, new int[] {14, 3},
+        new int[] {140, 946});
+
+    assertEquals(2, store.size());
+    assertEquals(1, store.rowOf(7));
+    assertEquals(-1, store.rowOf(5));
+    assertEquals(2, store.cityKeyCount());
+    assertEquals(store.originKey(0), store.destKey(1));
+    assertEquals("ID: 3 Day: 1 Carrier: AS Number: 24 Origin: Seattle WA Dest: Boston MA "
+                 + "Duration: 297 Capacity: 14 Price: 140",
+                 store.appendFlight(new StringBuilder(), 0).toString());
+  }
+
+  @Test
+  public void testIndirectMatchesBruteForce() {
+    Random random = new Random(42);
+    for (int trial = 0; trial < 20; trial++) {
+      FlightStore store = randomStore(random, 300 + random.nextInt(300));
+      // With and without the hub cache, which the second round of searches then hits
+      FlightIndex index = new FlightIndex(store, new SearchCache(0), trial % 2 == 0 ? 64 : 0,
+                                          100000);
+      for (int round = 0; round < 2; round++) {
+        for (int origin = 0; origin < CITIES; origin++) {
+          for (int dest = 0; dest < CITIES; dest++) {
+            int day = 1 + random.nextInt(DAYS);
+            int limit = 1 + random.nextInt(20);
+            String message = "trial " + trial + " " + origin + " -> " + dest + " day " + day
+                           + " limit " + limit;
+            assertEquals(message,
+                         fids(store, bruteForceIndirect(store, city(origin), city(dest), day,
+                                                        limit)),
+                         fids(store, index.searchIndirect(city(origin), city(dest), day,
+                                                          limit)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testIndirectBreaksTiesByFid() {
+    // Three pairs of 100 minutes through two hubs; the hub with the higher bound is cheaper to
+    // reach first, so pruning must not cut the tie short
+    FlightStore store = FlightStore.of(
+        new int[] {1, 2, 3, 4, 5}, new int[] {1, 1, 1, 1, 1},
+        new String[] {"AA", "AA", "AA", "AA", "AA"}, new String[] {"1", "2", "3", "4", "5"},
+        new String[] {"A", "A", "H2", "H1", "H1"}, new String[] {"H2", "H1", "B", "B", "B"},
+        new int[] {50, 40, 50, 60, 60}, new int[] {1, 1, 1, 1, 1},
+        new int[] {1, 1, 1, 1, 1});
+    FlightIndex index = new FlightIndex(store, new SearchCache(0), 0, 100000);
+
+    List<String> expected = Arrays.asList("[1, 3] 100", "[2, 4] 100", "[2, 5] 100");
+    assertEquals(expected, fids(store, index.searchIndirect("A", "B", 1, 3)));
+    assertEquals(expected.subList(0, 2), fids(store, index.searchIndirect("A", "B", 1, 2)));
+    assertEquals(expected.subList(0, 1), fids(store, index.searchIndirect("a", "b", 1, 1)));
+  }
+
+  @Test
+  public void testConnectingMatchesBruteForce() {
+    Random random = new Random(7);
+    for (int trial = 0; trial < 6; trial++) {
+      FlightStore store = randomStore(random, 150 + random.nextInt(150));
+      FlightIndex index = new FlightIndex(store, new SearchCache(0), 0, 1000000);
+      for (int maxStops = 2; maxStops <= FlightIndex.MAX_STOPS; maxStops++) {
+        for (int origin = 0; origin < CITIES; origin++) {
+          for (int dest = 0; dest < CITIES; dest++) {
+            int originKey = store.cityKey(city(origin));
+            int destKey = store.cityKey(city(dest));
+            if (origin == dest || originKey < 0 || destKey < 0) {
+              continue;
+            }
+            int day = 1 + random.nextInt(DAYS);
+            int limit = 1 + random.nextInt(15);
+            String message = "trial " + trial + " " + origin + " -> " + dest + " day " + day
+                           + " stops " + maxStops + " limit " + limit;
+            assertEquals(message,
+                         fids(store, bruteForceConnecting(store, originKey, destKey, day,
+                                                          maxStops, limit)),
+                         fids(store, index.searchConnecting(originKey, destKey, day, maxStops,
+                                                            limit)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testConnectingSkipsUnreachableDest() {
+    // Remote has a flight in, but only from Island, which nothing reaches
+    FlightStore store = FlightStore.of(
+        new int[] {1, 2, 3, 4, 5}, new int[] {1, 1, 1, 1, 1},
+        new String[] {"AA", "AA", "AA", "AA", "AA"}, new String[] {"1", "2", "3", "4", "5"},
+        new String[] {"A", "B", "C", "A", "Island"}, new String[] {"B", "C", "A", "C", "Remote"},
+        new int[] {10, 10, 10, 10, 10}, new int[] {1, 1, 1, 1, 1},
+        new int[] {1, 1, 1, 1, 1});
+
+    // With room for only one partial route, the search has to rule Remote out up front
+    FlightIndex index = new FlightIndex(store, new SearchCache(0), 0, 1);
+    int a = store.cityKey("A");
+    assertEquals(0, index.searchConnecting(a, store.cityKey("Remote"), 1, 3, 10).size());
+    assertEquals(0, index.search("A", "Remote", 1, 3, 10).indirect.size());
+  }
+
+  @Test
+  public void testConnectingGivesUpPastMaxRoutes() {
+    Random random = new Random(3);
+    FlightStore store = randomStore(random, 600);
+    FlightIndex index = new FlightIndex(store, new SearchCache(0), 0, 10);
+    try {
+      index.search(city(0), city(1), 1, 3, 1000);
+      fail("Searched past the route limit");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    // The same search fits under a larger limit
+    index = new FlightIndex(store, new SearchCache(0), 0, 1000000);
+    index.search(city(0), city(1), 1, 3, 1000);
+  }
+}
@@ -0,0 +1,144 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class FlightServerTest extends TestCase {
+  public FlightServerTest() { }
+
+  // Decodes a stream of frames back into the responses they carry, checking that every chunk
+  // holds whole characters
+  private static List<String> responses(byte[] frames) {
+    List<String> responses = new ArrayList<>();
+    StringBuilder response = new StringBuilder();
+    int i = 0;
+    while (i < frames.length) {
+      int newline = i;
+      while (frames[newline] != '\n') {
+        newline++;
+      }
+      int length = Integer.parseInt(new String(frames, i, newline - i, StandardCharsets.US_ASCII));
+      i = newline + 1;
+      if (length == 0) {
+        responses.add(response.toString());
+        response.setLength(0);
+      } else {
+        byte[] chunk = Arrays.copyOfRange(frames, i, i + length);
+        String text = new String(chunk, StandardCharsets.UTF_8);
+        assertEquals("chunk re-encodes", length, text.getBytes(StandardCharsets.UTF_8).length);
+        assertFalse("chunk has no replaced characters", text.contains("\ufffd"));
+        response.append(text);
+        i += length;
+      }
+    }
+    assertEquals("frames end with a response", 0, response.length());
+    return responses;
+  }
+
+  @Test
+  public void testFrameIsLengthPrefixedInBytes() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FlightServer.FrameWriter out = new FlightServer.FrameWriter(bytes, 64);
+    out.write("Caf\u00e9 \u2708\n");
+    out.endFrame();
+    out.endFrame();
+    out.flush();
+
+    // Seven characters, but ten bytes; an empty response is just the empty chunk
+    assertEquals("10\nCaf\u00e9 \u2708\n0\n0\n",
+                 new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testLongResponsesAreSplitIntoChunks() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FlightServer.FrameWriter out = new FlightServer.FrameWriter(bytes, 4);
+    out.append(new StringBuilder("Itinerary 0: 1 flight(s)\n"));
+    out.endFrame();
+    out.flush();
+
+    String framed = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(framed, framed.startsWith("4\nItin4\nerar"));
+    assertTrue(framed, framed.endsWith("1\n\n0\n"));
+    assertEquals(Arrays.asList("Itinerary 0: 1 flight(s)\n"), responses(bytes.toByteArray()));
+  }
+
+  @Test
+  public void testRandomResponsesRoundTrip() throws IOException {
+    // Surrogate pairs must never be split across chunks, however the text is written
+    String[] pieces = {"a", "\u00e9", "\ud83d\ude00", "xyz", "\n"};
+    Random random = new Random(11);
+    for (int trial = 0; trial < 500; trial++) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      FlightServer.FrameWriter out = new FlightServer.FrameWriter(bytes, 2 + random.nextInt(9));
+      List<String> expected = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        StringBuilder response = new StringBuilder();
+        for (int n = random.nextInt(40); n > 0; n--) {
+          response.append(pieces[random.nextInt(pieces.length)]);
+        }
+        switch (random.nextInt(3)) {
+          case 0:
+            out.write(response.toString());
+            break;
+          case 1:
+            out.append(response);
+            break;
+          default:
+            for (int c = 0; c < response.length(); c++) {
+              out.write(response.charAt(c));
+              if (random.nextInt(5) == 0) {
+                out.flush();
+              }
+            }
+        }
+        out.endFrame();
+        expected.add(response.toString());
+      }
+      out.flush();
+      assertEquals("trial " + trial, expected, responses(bytes.toByteArray()));
+    }
+  }
+
+  @Test
+  public void testReadsLinesLikeBufferedReader() throws IOException {
+    FlightServer.CommandReader in = new FlightServer.CommandReader(
+        new StringReader("login a b\r\nsearch\r\rbook 0\npay 1"), 20);
+    assertEquals("login a b", in.readLine());
+    assertEquals("search", in.readLine());
+    assertEquals("", in.readLine());
+    assertEquals("book 0", in.readLine());
+    assertTrue(in.ready());
+    assertEquals("pay 1", in.readLine());
+    assertEquals(null, in.readLine());
+    assertFalse(in.tooLong());
+  }
+
+  @Test
+  public void testStopsAtLongLines() throws IOException {
+    char[] longLine = new char[20000];
+    Arrays.fill(longLine, 'x');
+    FlightServer.CommandReader in = new FlightServer.CommandReader(
+        new StringReader("quit\n" + new String(longLine, 0, 10) + "\n" + new String(longLine)
+                         + "\nquit\n"), 10);
+    assertEquals("quit", in.readLine());
+    assertEquals("xxxxxxxxxx", in.readLine());
+    assertEquals(null, in.readLine());
+    assertTrue(in.tooLong());
+
+    // Nothing after the long line is read
+    assertEquals(null, in.readLine());
+  }
+}
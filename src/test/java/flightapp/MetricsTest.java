@@ -0,0 +1,79 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class MetricsTest extends TestCase {
+  public MetricsTest() { }
+
+  @Test
+  public void testSmallValuesGetABucketEach() {
+    for (long micros = 0; micros < 16; micros++) {
+      assertEquals(micros, Metrics.Histogram.bucketOf(micros));
+      assertEquals(micros, Metrics.Histogram.highestIn((int) micros));
+    }
+  }
+
+  @Test
+  public void testBucketsAreContiguous() {
+    // Each bucket ends right before the next one starts, up to about 2^40us
+    int bucket = 0;
+    while (Metrics.Histogram.highestIn(bucket) < (1L << 40)) {
+      long highest = Metrics.Histogram.highestIn(bucket);
+      assertEquals("highest in " + bucket, bucket, Metrics.Histogram.bucketOf(highest));
+      assertEquals("after " + bucket, bucket + 1, Metrics.Histogram.bucketOf(highest + 1));
+      bucket++;
+    }
+    assertTrue(bucket > 16 * 30);
+
+    // Anything longer shares the last bucket
+    int last = Metrics.Histogram.bucketOf(Long.MAX_VALUE);
+    assertEquals(last, Metrics.Histogram.bucketOf(1L << 50));
+  }
+
+  @Test
+  public void testBucketsAreWithinASixteenth() {
+    for (long micros = 16; micros < (1L << 40); micros = micros * 3 / 2 + 7) {
+      long highest = Metrics.Histogram.highestIn(Metrics.Histogram.bucketOf(micros));
+      assertTrue(micros + " in a bucket up to " + highest,
+                 highest >= micros && highest - micros < Math.max(1, micros / 16));
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    Metrics.Histogram histogram = new Metrics.Histogram();
+    assertEquals(0, histogram.percentileMicros(50));
+    assertEquals(0, histogram.meanMicros());
+
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros * 1000);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(500, histogram.meanMicros());
+    assertEquals(1000, histogram.maxMicros());
+
+    // Percentiles are upper bounds, at most a bucket's width above the exact value
+    long p50 = histogram.percentileMicros(50);
+    assertTrue("p50 " + p50, p50 >= 500 && p50 < 500 + 500 / 16);
+    long p99 = histogram.percentileMicros(99);
+    assertTrue("p99 " + p99, p99 >= 990 && p99 < 990 + 990 / 16);
+
+    // Never above the largest value recorded
+    assertEquals(1000, histogram.percentileMicros(99.99));
+    assertEquals(1000, histogram.percentileMicros(100));
+    assertEquals(1, histogram.percentileMicros(0));
+  }
+
+  @Test
+  public void testNegativeDurationsCountAsZero() {
+    Metrics.Histogram histogram = new Metrics.Histogram();
+    histogram.record(-5000);
+    assertEquals(1, histogram.count());
+    assertEquals(0, histogram.maxMicros());
+    assertEquals(0, histogram.percentileMicros(100));
+  }
+}
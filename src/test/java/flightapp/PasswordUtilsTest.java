@@ -101,4 +101,29 @@ public class PasswordUtilsTest extends TestCase {
     hash2 = PasswordUtils.hashWithSalt(arHello, salt1);
     assertFalse(Arrays.equals(hash1, hash2));
   }
+
+  @Test
+  public void testUnversionedHashesStillMatch() {
+    byte[] salt = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    byte[] hash = PasswordUtils.hashWithSalt("howdy", salt, 65536);
+
+    // Hashes stored before the cost was versioned are just the salt followed by the hash.
+    byte[] stored = new byte[salt.length + hash.length];
+    System.arraycopy(salt, 0, stored, 0, salt.length);
+    System.arraycopy(hash, 0, stored, salt.length, hash.length);
+
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHash("howdy", stored));
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHash("hello", stored));
+  }
+
+  @Test
+  public void testCostIsPartOfTheHash() {
+    byte[] salt = PasswordUtils.generateSalt();
+    byte[] cheap = PasswordUtils.hashWithSalt("hi", salt, 1000);
+    byte[] expensive = PasswordUtils.hashWithSalt("hi", salt, 2000);
+
+    // The same password and salt hashed at different costs must not collide, which is why the
+    // cost has to be stored next to the hash.
+    assertFalse(Arrays.equals(cheap, expensive));
+  }
 }
@@ -0,0 +1,111 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a reader holding its transaction open, at flightapp.read.isolation, does not
+ * stall a booking or a payment by the same user.
+ *
+ * The .test.txt harness only compares outputs, so it cannot tell a writer that waited for a
+ * reader's locks from one that did not.  Here the reader keeps its transaction open after
+ * reading the user's reservations, and each write has to finish within WRITE_WAIT_SECS while
+ * it is still open.  Run with -Dflightapp.read.isolation=SERIALIZABLE (and nothing set in
+ * dbconn.properties), the reader keeps range locks on the user's reservations, and this test
+ * fails.
+ *
+ * Needs dbconn.properties and the tables from createTables.sql, like FlightServiceTest.
+ */
+public class ReadIsolationTest extends TestCase {
+  // The reservations listing's seek, on the (username, res_id) index
+  private static final String READ_RESERVATIONS_SQL = "SELECT res_id, paid FROM Reservations_yangsam "
+                                                    + "WHERE username = ? AND res_id > 0 "
+                                                    + "ORDER BY res_id ASC";
+
+  // Far longer than a write takes when it does not wait for the reader
+  private static final int WRITE_WAIT_SECS = 10;
+
+  private ExecutorService writers;
+  private Query writer;
+  private Connection reader;
+
+  public ReadIsolationTest() { }
+
+  @Before
+  public void setUp() throws Exception {
+    Query query = new Query();
+    query.clearTables();
+    query.closeConnection();
+
+    writers = Executors.newSingleThreadExecutor();
+    writer = new Query();
+    reader = DBConnUtils.openConnection();
+    reader.setAutoCommit(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    // Ending the reader's transaction lets a stalled writer finish before its session closes
+    reader.rollback();
+    reader.close();
+    writers.shutdown();
+    writers.awaitTermination(60, TimeUnit.SECONDS);
+    writer.closeConnection();
+  }
+
+  // Reads the user's reservations in the reader's open transaction, returning how many
+  private int readReservations(String user) throws Exception {
+    int found = 0;
+    try (PreparedStatement stmt = reader.prepareStatement(READ_RESERVATIONS_SQL)) {
+      stmt.setString(1, user);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          found++;
+        }
+      }
+    }
+    return found;
+  }
+
+  // Runs a write on the writer's session, failing if it has to wait out the reader
+  private String write(String what, Callable<String> command) throws Exception {
+    Future<String> response = writers.submit(command);
+    try {
+      return response.get(WRITE_WAIT_SECS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      fail(what + " waited more than " + WRITE_WAIT_SECS + "s for an open reader");
+      return null;
+    }
+  }
+
+  @Test
+  public void testOpenReaderDoesNotStallBookAndPay() throws Exception {
+    assertEquals("Created user user1\n", writer.createCustomer("user1", "user1", 1000));
+    assertEquals("Logged in as user1\n", writer.login("user1", "user1"));
+    assertTrue(writer.search("Seattle WA", "Boston MA", true, 1, 1).startsWith("Itinerary 0"));
+
+    // No reservations yet; the reader's transaction stays open from here on
+    assertEquals(0, readReservations("user1"));
+    assertEquals("Booked flight(s), reservation ID: 1\n",
+                 write("Booking", () -> writer.book(0)));
+
+    // Read again, so that a locking level also holds locks on the new reservation
+    readReservations("user1");
+    assertEquals("Paid reservation: 1 remaining balance: 860\n",
+                 write("Payment", () -> writer.pay(1)));
+  }
+}